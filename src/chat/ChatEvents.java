@@ -0,0 +1,111 @@
+package chat;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// The ChatEvents class holds the Java Flight Recorder events of the chat server.
+// Together they show where a message spends its time on the way through the server:
+// handler spawn → login → command/message dispatch → room fan-out → each recipient's write.
+// Presence broadcasts and pending-queue matches are recorded too.
+//
+// Usage pattern (costs almost nothing when the event is disabled):
+//   ChatEvents.Dispatch ev = new ChatEvents.Dispatch();
+//   ev.begin();
+//   ... work ...
+//   if (ev.shouldCommit()) { ev.user = ...; ev.commit(); }
+// Fields are only filled in after shouldCommit(), so no strings are built when recording is off.
+// See chat.jfc in the project root for a ready-made recording configuration.
+
+public final class ChatEvents {
+
+    private ChatEvents() {}
+
+// The accept loop started the handler thread of a newly accepted connection.
+// Only the thread start is timed, not the wait in accept(): a long duration here
+// means the accept loop is slow to get back to accept(), so new clients queue up.
+
+    @Name("chat.HandlerSpawn")
+    @Label("Handler Spawn")
+    @Category({"Chat", "Connection"})
+    @StackTrace(false)
+    public static final class HandlerSpawn extends Event {
+        @Label("Remote Address") public String remoteAddress;
+    }
+
+// A client went through username negotiation (from the first prompt to welcome).
+
+    @Name("chat.Login")
+    @Label("Login Negotiation")
+    @Category({"Chat", "Connection"})
+    @StackTrace(false)
+    public static final class Login extends Event {
+        @Label("User") public String user;
+        @Label("Attempts") public int attempts;
+        @Label("Succeeded") public boolean succeeded;
+    }
+
+// One input line was handled: a /command, or a chat message routed to its room.
+
+    @Name("chat.Dispatch")
+    @Label("Command Dispatch")
+    @Category({"Chat", "Dispatch"})
+    @StackTrace(false)
+    public static final class Dispatch extends Event {
+        @Label("User") public String user;
+        @Label("Command") @Description("Command keyword, or 'say' for a chat message")
+        public String command;
+    }
+
+// ChatRoom.say delivered one message to every participant and supervisor.
+
+    @Name("chat.RoomFanout")
+    @Label("Room Fan-out")
+    @Category({"Chat", "Room"})
+    @StackTrace(false)
+    public static final class RoomFanout extends Event {
+        @Label("Room") public String room;
+        @Label("Sender") public String sender;
+        @Label("Recipients") public int recipients;
+        @Label("Message Length") public int length;
+    }
+
+// One recipient's PrintStream write inside a room fan-out.
+// A long duration here means that client's socket is not draining.
+
+    @Name("chat.RecipientWrite")
+    @Label("Recipient Write")
+    @Category({"Chat", "Room"})
+    public static final class RecipientWrite extends Event {
+        @Label("Room") public String room;
+        @Label("Recipient") public String recipient;
+        @Label("Supervisor") public boolean supervisor;
+    }
+
+// The online list was sent to every logged-in session.
+
+    @Name("chat.PresenceBroadcast")
+    @Label("Presence Broadcast")
+    @Category({"Chat", "Presence"})
+    @StackTrace(false)
+    public static final class PresenceBroadcast extends Event {
+        @Label("Recipients") public int recipients;
+        @Label("Message Length") public int length;
+    }
+
+// notifyPending looked at a waiting requester for a user who became free.
+
+    @Name("chat.PendingMatch")
+    @Label("Pending Match")
+    @Category({"Chat", "Presence"})
+    @StackTrace(false)
+    public static final class PendingMatch extends Event {
+        @Label("Freed User") public String freedUser;
+        @Label("Requester") public String requester;
+        @Label("Outcome") @Description("opened, requeued or dropped")
+        public String outcome;
+    }
+}
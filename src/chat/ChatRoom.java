@@ -4,6 +4,7 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class ChatRoom {
@@ -13,6 +14,8 @@ public class ChatRoom {
 // Colors define how names/messages appear for senders, receivers, and system messages.
 // Each chat room has a unique ID, a set of participants, and supervisors.
 // SEQ is a counter that auto-increments to give each new room a unique ID (room 1, room 2, etc.).
+// state is the room's lifecycle: OPEN → CLOSING → CLOSED. Only one thread can win the
+// OPEN → CLOSING step, so a room is closed exactly once (see RoomLifecycle).
 
     private static final SimpleDateFormat TS = new SimpleDateFormat("HH:mm");
     private static final String SENDER_NAME_COLOR = ChatColors.PURPLE;
@@ -23,6 +26,8 @@ public class ChatRoom {
     private final String id;
     private final Set<UserSession> participants = new CopyOnWriteArraySet<>();
     private final Set<UserSession> supervisors = new CopyOnWriteArraySet<>();
+    private final AtomicReference<State> state = new AtomicReference<>(State.OPEN);
+    public enum State { OPEN, CLOSING, CLOSED }
     private ChatRoom(String id) { this.id = id; }
     private static final AtomicInteger SEQ = new AtomicInteger(1);
 
@@ -54,9 +59,14 @@ public class ChatRoom {
 // If the user is the sender, their message is shown in one color;
 // for others, it is shown in a different color.
 // Supervisors see all messages in blue.
+// The whole fan-out is recorded as a chat.RoomFanout event,
+// and each recipient's write as a chat.RecipientWrite event.
 
     public void say(UserSession from, String msg) {
+        ChatEvents.RoomFanout fan = new ChatEvents.RoomFanout();
+        fan.begin();
         String ts = "[" + TS.format(new Date()) + "] ";
+        int sent = 0;
 
         for (UserSession u : participants) {
             boolean isSenderView = (u == from);
@@ -67,22 +77,68 @@ public class ChatRoom {
             String msgPart  = (isSenderView ? SENDER_MSG_COLOR  : RECV_MSG_COLOR)
                     + msg + ChatColors.RESET;
 
-            u.out().println(ts + namePart + ": " + msgPart);
+            write(u, ts + namePart + ": " + msgPart, false);
+            sent++;
         }
 
         for (UserSession sup : supervisors) {
             String namePart = ChatColors.BLUE + from.name() + ChatColors.RESET;
             String msgPart  = ChatColors.BLUE  + msg        + ChatColors.RESET;
-            sup.out().println(ts + namePart + ": " + msgPart);
+            write(sup, ts + namePart + ": " + msgPart, true);
+            sent++;
+        }
+
+        if (fan.shouldCommit()) {
+            fan.room = id;
+            fan.sender = from.name();
+            fan.recipients = sent;
+            fan.length = msg.length();
+            fan.commit();
+        }
+    }
+
+// Writes one line to one room member and records how long the write took.
+
+    private void write(UserSession u, String line, boolean supervisor) {
+        ChatEvents.RecipientWrite ev = new ChatEvents.RecipientWrite();
+        ev.begin();
+        u.out().println(line);
+        if (ev.shouldCommit()) {
+            ev.room = id;
+            ev.recipient = u.name();
+            ev.supervisor = supervisor;
+            ev.commit();
         }
     }
 
 
 // Adds a supervisor (like an admin) to the chat room.
 // Supervisors can monitor the conversation without being regular participants.
+// The state is checked after adding: if the room started closing meanwhile, the
+// supervisor is taken out again and false is returned. Either this check or the
+// closing thread's member snapshot will see the supervisor, so nobody is left behind.
 
-    public void addSupervisor(UserSession sup) {
+    public boolean addSupervisor(UserSession sup) {
         supervisors.add(sup);
+        if (state.get() != State.OPEN) {
+            supervisors.remove(sup);
+            return false;
+        }
+        return true;
+    }
+
+// Lifecycle of the room.
+// beginClose() moves OPEN → CLOSING and returns true only for the one thread that wins.
+// finishClose() marks the room CLOSED once all members were released.
+
+    public State state() { return state.get(); }
+
+    boolean beginClose() {
+        return state.compareAndSet(State.OPEN, State.CLOSING);
+    }
+
+    void finishClose() {
+        state.set(State.CLOSED);
     }
 
 // Removes a user from the room.
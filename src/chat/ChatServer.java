@@ -3,8 +3,11 @@ package chat;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static chat.ChatUtils.sys;
 import static chat.ChatUtils.broadcastSys;
@@ -17,34 +20,71 @@ public class ChatServer {
 // - PORT = the port number clients connect to (7000).
 // - ALLOWED = list of usernames that are allowed to log in.
 // - sessionsByName = keeps track of active users by their name.
-// - allSessions = holds all current user sessions for broadcasts.
-// - rooms = stores all active chat rooms.
+// - allSessions = holds all current user sessions for broadcasts (sharded, see SessionRegistry).
+// - rooms = stores all active chat rooms and is the only place that opens or closes them.
 // - pendingByTarget = keeps queues of people waiting to chat with a user.
+// - transcripts = full-text index of room messages, searched by ADMIN with /search.
+// - monitor = shared feed of events from all rooms, watched by ADMIN with /monitor.
+// - spool = stored messages for offline users, delivered when they log in.
 
     private static final int PORT = 7000;
     private static final List<String> ALLOWED = Arrays.asList("BOB","JACK","ALICE","EVA","MIKE","ADMIN");
     private static final ConcurrentMap<String, UserSession> sessionsByName = new ConcurrentHashMap<>();
-    private static final CopyOnWriteArrayList<UserSession> allSessions     = new CopyOnWriteArrayList<>();
-    private static final ConcurrentMap<String, ChatRoom> rooms             = new ConcurrentHashMap<>();
+    private static final SessionRegistry allSessions                       = new SessionRegistry();
+    private static final RoomLifecycle rooms                               = new RoomLifecycle();
     private static final ConcurrentMap<String, Queue<String>> pendingByTarget = new ConcurrentHashMap<>();
+    private static final int SEARCH_LIMIT = 20;
+
+// Join/leave announcements and presence updates are not sent right away. They are
+// collected and sent together at most once every BROADCAST_DELAY_MS, so a storm of
+// connects or disconnects costs one broadcast per tick instead of one per user.
+// - announcements = join/leave texts waiting for the next tick.
+// - broadcastScheduled = true while a tick is scheduled.
+// - presenceDirty = true if the online list changed since the last tick.
+// - MAX_ANNOUNCE = above this many texts in one tick, only a count is sent.
+
+    private static final long BROADCAST_DELAY_MS = 100;
+    private static final int  MAX_ANNOUNCE       = 10;
+    private static final Queue<String> announcements    = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean broadcastScheduled = new AtomicBoolean();
+    private static final AtomicBoolean presenceDirty      = new AtomicBoolean();
+    private static final ScheduledExecutorService broadcastTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "broadcast-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static TranscriptIndex transcripts;
+    private static OfflineSpool spool;
+    private static final MonitorFeed monitor = new MonitorFeed();
 
 
 
 
 
 // This is the main entry point of the server:
-// - Opens a server socket on the given PORT.
+// - Opens a server socket on the given PORT (with TLS if a keystore is configured, see TlsSupport).
+// - Opens the transcript search index (directory from -Dchat.index.dir, default "index").
+// - Opens the offline message spool (directory from -Dchat.spool.dir, default "spool").
 // - Prints a message that the server is running.
 // - Waits for clients to connect (server.accept()).
 // - For every new client, starts a new thread to handle them.
 // This allows multiple users to connect at the same time.
 
     public static void main(String[] args) throws IOException {
-        try (ServerSocket server = new ServerSocket(PORT)) {
-            log("* Server up on " + PORT + ". Waiting for clients...");
+        transcripts = new TranscriptIndex(Paths.get(System.getProperty("chat.index.dir", "index")));
+        spool = new OfflineSpool(Paths.get(System.getProperty("chat.spool.dir", "spool")));
+        try (ServerSocket server = TlsSupport.serverSocket(PORT)) {
+            log("* Server up on " + PORT + (TlsSupport.serverTlsEnabled() ? " (TLS)" : "") + ". Waiting for clients...");
             while (true) {
                 Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                ChatEvents.HandlerSpawn ev = new ChatEvents.HandlerSpawn();
+                ev.begin();
                 new Thread(() -> handleClient(s)).start();
+                if (ev.shouldCommit()) {
+                    ev.remoteAddress = s.getInetAddress() + ":" + s.getPort();
+                    ev.commit();
+                }
             }
         }
     }
@@ -54,11 +94,13 @@ public class ChatServer {
 // This method handles one connected client:
 // - Creates a new UserSession for the client and adds it to the active sessions list.
 // - Asks the client to choose a username (negotiateName).
-// - Announces to others that the user joined and shows them the current online list.
-// - Then enters a loop to read messages from the client.
+// - Announces to others that the user joined (on the next broadcast tick) and shows them the current online list.
+// - Then enters a loop to read messages from the client (each line is timed as a chat.Dispatch event).
 //   * If the user types "/quit" or "goodbye", they disconnect.
 //   * If the message starts with "/", it is treated as a command.
 //   * Otherwise, it's sent to the active chat room, if the user is in one.
+// - Lines come from the session's LineDecoder already trimmed; a client sending a line
+//   longer than the limit is told so and disconnected.
 // - When the client leaves or an error happens, it cleans up and closes the connection.
 
     private static void handleClient(Socket socket) {
@@ -69,12 +111,11 @@ public class ChatServer {
             log("* Connection from " + us.addr());
 
             negotiateName(us);
-            broadcastSys(allSessions, us.name()+" joined. Type /menu for commands.");
+            announce(us.name()+" joined. Type /menu for commands.");
             sendPresenceListTo(us);
 
             String line;
             while ((line = us.in().readLine()) != null) {
-                line = line.trim();
                 if (line.isEmpty()) continue;
 
                 if (line.equalsIgnoreCase("goodbye") || line.equalsIgnoreCase("/quit")) {
@@ -82,6 +123,8 @@ public class ChatServer {
                     break;
                 }
 
+                ChatEvents.Dispatch ev = new ChatEvents.Dispatch();
+                ev.begin();
                 if (line.startsWith("/")) {
                     handleCommand(us, line);
                 } else {
@@ -89,17 +132,27 @@ public class ChatServer {
                     if (us.activeRoomId() == null) {
                         us.out().println(sys("No active chat. Use /chat <USER> first."));
                     } else {
-                        ChatRoom room = rooms.get(us.activeRoomId());
+                        String rid = us.activeRoomId();
+                        ChatRoom room = rooms.get(rid);
                         if (room != null) {
                             room.say(us, line);
+                            transcripts.add(room.id(), us.name(), line);
+                            monitor.publish(room.id(), us.name(), line);
                         } else {
-                            us.setActiveRoomId(null);
+                            us.releaseRoom(rid);
                             us.out().println(sys("Chat ended. Start a new one with /chat <USER>."));
                         }
                     }
                 }
+                if (ev.shouldCommit()) {
+                    ev.user = us.name();
+                    ev.command = line.startsWith("/") ? line.substring(1).split("\\s+", 2)[0].toLowerCase() : "say";
+                    ev.commit();
+                }
             }
 
+        } catch (LineDecoder.FrameTooLongException e) {
+            us.out().println(sys(ChatColors.RED+"✖ Line too long (max " + e.max() + " bytes). Disconnecting."+ChatColors.RESET));
         } catch (Exception ignored) {
         } finally {
             if (us != null) cleanup(us);
@@ -118,9 +171,12 @@ public class ChatServer {
 //   * /whoami → shows the user’s name, status, and current chat.
 //   * /busy /free → changes the user’s availability.
 //   * /chat <USER> → starts a chat with another user.
+//   * /msg <USER> <TEXT> → leaves a message for a user who is offline.
 //   * /leave → leaves the current chat room.
 //   * /rooms → lists all active chat rooms.
 //   * /join <ROOM> → lets a supervisor join an existing room.
+//   * /search <WORDS> → lets ADMIN search past room messages.
+//   * /monitor [FILTERS] /unmonitor → lets ADMIN watch all rooms at once.
 //   * /quit → disconnects from the server.
 // - If the command is not recognized, it shows an "Unknown command" message.
 
@@ -143,9 +199,13 @@ public class ChatServer {
                                 "  /busy            - Mark yourself as busy\n" +
                                 "  /free            - Mark yourself as free\n" +
                                 "  /chat <USER>     - Start chat with a user\n" +
+                                "  /msg <USER> <TEXT> - Leave a message for an offline user\n" +
                                 "  /leave           - Leave the current chat\n" +
                                 "  /rooms           - List all active chat rooms\n" +
                                 "  /join <ROOM>     - Join a room as supervisor\n" +
+                                "  /search <WORDS>  - Search past chats (ADMIN)\n" +
+                                "  /monitor [user=X room=N kw=W sample=N] - Watch all rooms (ADMIN)\n" +
+                                "  /unmonitor       - Stop watching all rooms\n" +
                                 "  /quit            - Disconnect from server"+ChatColors.RESET
                 ));
                 break;
@@ -173,6 +233,12 @@ public class ChatServer {
                 startChat(us, arg.toUpperCase());
                 break;
             }
+            case "msg": {
+                String[] to = arg.split("\\s+", 2);
+                if (to.length < 2) { us.out().println(sys("Usage: /msg <USER> <TEXT>")); break; }
+                leaveOfflineMessage(us, to[0].toUpperCase(), to[1]);
+                break;
+            }
             case "leave": {
                 leaveChat(us);
                 break;
@@ -187,6 +253,20 @@ public class ChatServer {
                 joinAsSupervisor(us, roomKey);
                 break;
             }
+            case "search": {
+                if (arg.isEmpty()) { us.out().println(sys("Usage: /search <WORDS>")); break; }
+                searchTranscripts(us, arg);
+                break;
+            }
+            case "monitor": {
+                startMonitor(us, arg);
+                break;
+            }
+            case "unmonitor": {
+                if (monitor.unsubscribe(us)) us.out().println(sys("Monitoring stopped."));
+                else us.out().println(sys("You are not monitoring."));
+                break;
+            }
             case "quit": {
                 us.out().println(sys("Goodbye!"));
                 break;
@@ -202,35 +282,48 @@ public class ChatServer {
 
 // This method makes sure each user connects with a valid and unique username:
 // 1. Asks the client to enter a username (must be from the ALLOWED list).
-// 2. Reads the input, trims spaces, and converts it to uppercase.
+// 2. Reads the input (already trimmed by the LineDecoder) and converts it to uppercase.
 // 3. If the username is not in the ALLOWED list → reject and ask again.
 // 4. If the username is already taken (someone else logged in with it) → reject and ask again.
 // 5. Once valid, assign the name to the user session and store it in the active sessions map.
 // 6. Send a welcome message to the user.
-// 7. Call notifyPending(name) to check if anyone was waiting to chat with this user.
+// 7. Deliver any offline messages that were stored for this user, in batched writes.
+// 8. Call notifyPending(name) to check if anyone was waiting to chat with this user.
+// The whole negotiation is recorded as one chat.Login event, also when it ends with an
+// error (client gone, line too long, I/O error); then succeeded is false.
 
     private static void negotiateName(UserSession us) throws IOException {
-        while (true) {
-            us.out().println(sys("Enter username (allowed: " + ALLOWED + "):"));
-            String name = us.in().readLine();
-            if (name == null) throw new IOException("Client closed");
-            name = name.trim().toUpperCase();
-
-            if (!ALLOWED.contains(name)) {
-                us.out().println(sys(ChatColors.RED+"✖ Not allowed. Choose from: " + ALLOWED+ChatColors.RESET));
-                continue;
-            }
-            if (sessionsByName.containsKey(name)) {
-                us.out().println(sys(ChatColors.RED+"✖ Already logged in elsewhere."+ChatColors.RESET));
-                continue;
-            }
+        ChatEvents.Login ev = new ChatEvents.Login();
+        ev.begin();
+        try {
+            while (true) {
+                us.out().println(sys("Enter username (allowed: " + ALLOWED + "):"));
+                ev.attempts++;
+                String name = us.in().readLine();
+                if (name == null) throw new IOException("Client closed");
+                name = name.toUpperCase();
+
+                if (!ALLOWED.contains(name)) {
+                    us.out().println(sys(ChatColors.RED+"✖ Not allowed. Choose from: " + ALLOWED+ChatColors.RESET));
+                    continue;
+                }
+                if (sessionsByName.containsKey(name)) {
+                    us.out().println(sys(ChatColors.RED+"✖ Already logged in elsewhere."+ChatColors.RESET));
+                    continue;
+                }
 
-            us.setName(name);
-            sessionsByName.put(name, us);
-            us.out().println(sys("Welcome, " + name + "!"));
+                us.setName(name);
+                ev.user = name;
+                sessionsByName.put(name, us);
+                us.out().println(sys("Welcome, " + name + "!"));
+                spool.deliver(name, us.out());
 
-            notifyPending(name);
-            break;
+                notifyPending(name);
+                ev.succeeded = true;
+                break;
+            }
+        } finally {
+            if (ev.shouldCommit()) ev.commit();
         }
     }
 
@@ -273,8 +366,12 @@ public class ChatServer {
 // 1. Prevents a user from opening multiple chats or chatting with themselves.
 // 2. Validates that the target user exists in the allowed list.
 // 3. If the target is offline or busy, the caller is added to the target's waiting queue.
-// 4. If the target is free, a new chat room is created for both users.
-// 5. Both users are marked as BUSY and linked to the new chat room.
+//    If offline, a note is also stored in the target's offline spool, which survives restarts;
+//    asking again does not queue the caller or store the note a second time.
+// 4. If the target is free, a new chat room is opened for both users.
+// 5. Both users are marked as BUSY and linked to the new chat room in one atomic step each;
+//    if one of them got into another room meanwhile, the room is closed again, and a supervisor
+//    who already joined it in that short time is told it closed.
 // 6. A system message announces the chat, and the presence list is updated for everyone.
 
     private static void startChat(UserSession caller, String targetName) {
@@ -293,8 +390,12 @@ public class ChatServer {
 
         UserSession target = sessionsByName.get(targetName);
         if (target == null) {
-            caller.out().println(sys(ChatColors.RED+"✖ " + targetName + " is offline. Added to their pending queue."+ChatColors.RESET));
-            pendingByTarget.computeIfAbsent(targetName, k -> new ConcurrentLinkedQueue<>()).offer(caller.name());
+            Queue<String> q = pendingByTarget.computeIfAbsent(targetName, k -> new ConcurrentLinkedQueue<>());
+            if (!q.contains(caller.name())) q.offer(caller.name());
+            boolean stored = spool.appendOnce(targetName, caller.name(), "wanted to chat with you.");
+            String note = stored ? "" : " (Their mailbox is full, so they will not see that you asked.)";
+            caller.out().println(sys(ChatColors.RED+"✖ " + targetName + " is offline. Added to their pending queue. Use /msg to leave a message."+ChatColors.RESET + note));
+            if (stored) deliverIfOnline(targetName);
             return;
         }
         if (target.isBusy() || target.activeRoomId()!=null) {
@@ -303,27 +404,74 @@ public class ChatServer {
             return;
         }
 
-        ChatRoom room = ChatRoom.create(caller, target);
-        rooms.put(room.id(), room);
-        caller.setActiveRoomId(room.id());
-        target.setActiveRoomId(room.id());
-        caller.setBusy(true); target.setBusy(true);
+        RoomLifecycle.Opened opened = rooms.open(caller, target);
+        ChatRoom room = opened.room();
+        if (room == null) {
+            if (opened.aborted() != null) {
+                for (UserSession sup : opened.aborted().supervisors()) {
+                    sup.out().println(sys("Chat " + opened.aborted().roomId() + " closed."));
+                }
+            }
+            if (caller.activeRoomId() != null) {
+                caller.out().println(sys(ChatColors.RED+"✖ You are already in " + caller.activeRoomId() + ". Use /leave first."+ChatColors.RESET));
+            } else {
+                caller.out().println(sys(targetName + " is busy. Added to their pending queue."));
+                pendingByTarget.computeIfAbsent(targetName, k -> new ConcurrentLinkedQueue<>()).offer(caller.name());
+            }
+            return;
+        }
 
         room.system("Chat " + room.id() + " opened between " + caller.name() + " and " + target.name());
+        monitor.publish(room.id(), null, "opened between " + caller.name() + " and " + target.name());
         broadcastPresence();
     }
 
 
 
+// This method stores a message for a user who is offline:
+// 1. Validates that the target user exists in the allowed list.
+// 2. If the target is online, tells the caller to use /chat instead.
+// 3. Otherwise appends the message to the target's offline spool.
+// 4. If the target's mailbox is full, the caller is told the message was not stored.
+// 5. If the target logged in meanwhile, their mailbox is delivered right away (deliverIfOnline).
+
+    private static void leaveOfflineMessage(UserSession caller, String targetName, String text) {
+        if (!ALLOWED.contains(targetName)) {
+            caller.out().println(sys(ChatColors.RED+"✖ No such user: " + targetName + ChatColors.RESET));
+            return;
+        }
+        if (sessionsByName.containsKey(targetName)) {
+            caller.out().println(sys(targetName + " is online. Use /chat " + targetName + "."));
+            return;
+        }
+        if (spool.append(targetName, caller.name(), text)) {
+            caller.out().println(sys("Message stored for " + targetName + "."));
+            deliverIfOnline(targetName);
+        } else {
+            caller.out().println(sys(ChatColors.RED+"✖ " + targetName + "'s mailbox is full. Message not stored."+ChatColors.RESET));
+        }
+    }
+
+
+
+// This method closes the gap between "target is offline" and the spool write:
+// the target may have logged in after the check, and their login delivery may
+// have run before the message was written. Login registers the session before it
+// delivers, so if the session is not there yet, that delivery will still see the message;
+// if it is there, the mailbox is delivered again here (it is empty if login got it first).
+
+    private static void deliverIfOnline(String targetName) {
+        UserSession target = sessionsByName.get(targetName);
+        if (target != null) spool.deliver(targetName, target.out());
+    }
+
+
+
 // This method lets a user leave their active chat room:
 // 1. If the user is not in any chat, it tells them "No active chat."
-// 2. Otherwise, it announces to the room that the user left and removes them.
-// 3. If fewer than 2 participants remain, the whole room is closed:
-//    - All remaining users and supervisors are released (set FREE).
-//    - They are notified the chat closed, and pending requests are checked.
-//    - The room is removed from the active list.
-// 4. If enough people remain, only the leaving user is released from the chat.
-// 5. The presence list is updated for everyone after changes.
+// 2. Otherwise, it announces to the room that the user left and removes them (departRoom).
+// 3. If that closed the room, the user is told the chat closed; otherwise that they left.
+// 4. The presence list is updated for everyone, and pending requests for the user are checked.
 
     private static void leaveChat(UserSession us) {
         String rid = us.activeRoomId();
@@ -331,48 +479,49 @@ public class ChatServer {
 
         ChatRoom room = rooms.get(rid);
         if (room == null) {
-            us.setActiveRoomId(null);
-            us.setBusy(false);
+            us.releaseRoom(rid);
             us.out().println(sys("Chat ended."));
             broadcastPresence();
             return;
         }
 
         room.system(us.name() + " left the chat.");
-        room.remove(us);
-
-        if (room.participantsCount() < 2) {
-            for (UserSession other : room.participantsList()) {
-                other.setActiveRoomId(null);
-                other.setBusy(false);
-                other.out().println(sys("Chat " + rid + " closed."));
-                notifyPending(other.name());
-            }
-            for (UserSession sup : room.supervisorsList()) {
-                sup.setActiveRoomId(null);
-                sup.setBusy(false);
-                sup.out().println(sys("Chat " + rid + " closed."));
-            }
-
-            us.setActiveRoomId(null);
-            us.setBusy(false);
+        if (departRoom(us, room)) {
             us.out().println(sys("Chat " + rid + " closed."));
-            notifyPending(us.name());
-
-            rooms.remove(rid);
-            broadcastPresence();
-            return;
+        } else {
+            us.out().println(sys("Left chat " + rid + "."));
         }
-
-        us.setActiveRoomId(null);
-        us.setBusy(false);
-        us.out().println(sys("Left chat " + rid + "."));
         broadcastPresence();
         notifyPending(us.name());
     }
 
 
 
+// This method takes a user out of a room, for both /leave and disconnect:
+// 1. Asks the room lifecycle to remove and release the user.
+// 2. If fewer than 2 participants remain, the lifecycle closes the room exactly once
+//    and returns everyone it released.
+// 3. Those users and supervisors are told the chat closed, and pending requests
+//    for the released participants are checked.
+// Returns true if this call closed the room.
+
+    private static boolean departRoom(UserSession us, ChatRoom room) {
+        RoomLifecycle.Closed closed = rooms.leave(us, room);
+        if (closed == null) return false;
+
+        for (UserSession other : closed.participants()) {
+            other.out().println(sys("Chat " + room.id() + " closed."));
+            notifyPending(other.name());
+        }
+        for (UserSession sup : closed.supervisors()) {
+            sup.out().println(sys("Chat " + room.id() + " closed."));
+        }
+        monitor.publish(room.id(), null, "closed");
+        return true;
+    }
+
+
+
 // This method shows the user all currently active chat rooms:
 // 1. If there are no rooms, it tells the user "No active rooms."
 // 2. Otherwise, it builds a list of each room with its ID and participants.
@@ -381,7 +530,7 @@ public class ChatServer {
     private static void listRooms(UserSession us) {
         if (rooms.isEmpty()) { us.out().println(sys("No active rooms.")); return; }
         StringBuilder sb = new StringBuilder("Active rooms:\n");
-        for (ChatRoom r : rooms.values()) {
+        for (ChatRoom r : rooms.all()) {
             sb.append("- ").append(r.id()).append(" : ").append(r.participantsSummary()).append("\n");
         }
         us.out().println(sys(sb.toString().trim()));
@@ -394,6 +543,7 @@ public class ChatServer {
 // 2. If the admin is already in a room, they must leave it first.
 // 3. It checks if the requested room exists; if not, an error is shown.
 // 4. If valid, the admin is added as a supervisor, marked busy, and the room is notified.
+//    A room that is closing at that moment counts as "No such room".
 // 5. Finally, the system updates everyone's view of who is online and in which room.
 
     private static void joinAsSupervisor(UserSession sup, String roomId) {
@@ -406,17 +556,88 @@ public class ChatServer {
             return;
         }
         ChatRoom r = rooms.get(roomId);
-        if (r == null) { sup.out().println(sys(ChatColors.RED+"✖ No such room."+ChatColors.RESET)); return; }
+        if (r == null || !rooms.join(sup, r)) { sup.out().println(sys(ChatColors.RED+"✖ No such room."+ChatColors.RESET)); return; }
 
-        r.addSupervisor(sup);
-        sup.setActiveRoomId(r.id());
-        sup.setBusy(true);
         r.system("Supervisor " + sup.name() + " joined " + r.id());
         broadcastPresence();
     }
 
 
 
+// This method lets the ADMIN user search old chat messages:
+// 1. Only a user named "ADMIN" is allowed to search.
+// 2. Asks the transcript index for the newest messages containing all the words
+//    (at most TranscriptIndex.MAX_TERMS words; a longer query is refused).
+// 3. Shows each match as room, user and time, or "No matches." if there are none.
+// 4. If some messages could not be indexed, says how many, so missing results are not a surprise.
+
+    private static void searchTranscripts(UserSession us, String query) {
+        if (!"ADMIN".equals(us.name())) {
+            us.out().println(sys(ChatColors.RED+"✖ Only ADMIN can search chats."+ChatColors.RESET));
+            return;
+        }
+        List<TranscriptIndex.Doc> hits;
+        try {
+            hits = transcripts.search(query, SEARCH_LIMIT);
+        } catch (IllegalArgumentException e) {
+            us.out().println(sys(ChatColors.RED+"✖ " + e.getMessage()+ChatColors.RESET));
+            return;
+        } catch (IOException e) {
+            us.out().println(sys(ChatColors.RED+"✖ Search failed: " + e.getMessage()+ChatColors.RESET));
+            return;
+        }
+        String note = transcripts.dropped() > 0
+                ? "\n(" + transcripts.dropped() + " messages could not be indexed and are not searchable.)" : "";
+        if (hits.isEmpty()) { us.out().println(sys("No matches." + note)); return; }
+
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        StringBuilder sb = new StringBuilder("Matches for '" + query + "':\n");
+        for (TranscriptIndex.Doc d : hits) {
+            sb.append("- ").append(d.room()).append(" : ").append(d.user())
+              .append(" at ").append(fmt.format(new Date(d.ts()))).append("\n");
+        }
+        us.out().println(sys(sb.toString().trim() + note));
+    }
+
+
+
+// This method lets the ADMIN user watch every room at once:
+// 1. Only a user named "ADMIN" is allowed to monitor.
+// 2. Reads optional filters: user=NAME, room=ID (e.g. room=3), kw=WORD, sample=N (1 of every N).
+// 3. Starts (or replaces) the admin's subscription on the shared monitor feed.
+// Unlike /join, this does not mark the admin busy or put them in a room.
+
+    private static void startMonitor(UserSession us, String arg) {
+        if (!"ADMIN".equals(us.name())) {
+            us.out().println(sys(ChatColors.RED+"✖ Only ADMIN can monitor rooms."+ChatColors.RESET));
+            return;
+        }
+        String user = null, room = null, kw = null;
+        int sample = 1;
+        for (String opt : arg.isEmpty() ? new String[0] : arg.split("\\s+")) {
+            int eq = opt.indexOf('=');
+            String key = eq < 0 ? "" : opt.substring(0, eq).toLowerCase();
+            String val = eq < 0 ? "" : opt.substring(eq + 1);
+            try {
+                switch (key) {
+                    case "user":   user = val.toUpperCase(); break;
+                    case "room":   room = val.matches("\\d+") ? "room " + val : val.toLowerCase(); break;
+                    case "kw":     kw = val; break;
+                    case "sample": sample = Integer.parseInt(val); break;
+                    default: throw new IllegalArgumentException();
+                }
+            } catch (IllegalArgumentException e) {
+                us.out().println(sys("Usage: /monitor [user=NAME] [room=ID] [kw=WORD] [sample=N]"));
+                return;
+            }
+        }
+        MonitorFeed.Subscription sub = new MonitorFeed.Subscription(user, room, kw, sample);
+        monitor.subscribe(us, sub);
+        us.out().println(sys("Monitoring all rooms (" + sub.describe() + "). Use /unmonitor to stop."));
+    }
+
+
+
 // This method connects waiting users when someone becomes free:
 // 1. It gets the queue of people waiting to chat with the freed user.
 // 2. If the queue is empty, it does nothing.
@@ -424,6 +645,7 @@ public class ChatServer {
 // 4. If the freed user is still busy, the requester goes back into the queue.
 // 5. If free, the requester is notified, and a new chat is started automatically.
 // 6. Only one chat is started per call, then it stops.
+// Each requester looked at is recorded as a chat.PendingMatch event.
 
     private static void notifyPending(String freedUser) {
         Queue<String> q = pendingByTarget.get(freedUser);
@@ -433,28 +655,95 @@ public class ChatServer {
         while ((requester = q.poll()) != null) {
             UserSession req = sessionsByName.get(requester);
             UserSession tgt = sessionsByName.get(freedUser);
-            if (req == null || tgt == null) continue;
+            ChatEvents.PendingMatch ev = new ChatEvents.PendingMatch();
+            ev.begin();
+            if (req == null || tgt == null) {
+                commitPendingMatch(ev, freedUser, requester, "dropped");
+                continue;
+            }
             if (tgt.isBusy() || tgt.activeRoomId()!=null) {
                 q.offer(requester);
+                commitPendingMatch(ev, freedUser, requester, "requeued");
                 break;
             }
             req.out().println(sys(freedUser + " is now free. Opening chat..."));
             startChat(req, freedUser);
+            commitPendingMatch(ev, freedUser, requester, "opened");
             break;
         }
     }
 
 
-// This method updates all connected users with the current online list:
-// 1. It builds a presence message using presenceMessage().
-// 2. Then it loops through all active sessions.
-// 3. For each session that has a username, it sends the message.
-// 4. This keeps everyone updated about who is online and their status.
+// This method marks the online list as changed:
+// 1. Sets presenceDirty, so the next tick sends the current list to everyone.
+// 2. Schedules a tick if none is pending.
+// Many changes within BROADCAST_DELAY_MS are sent as one presence update.
 
     private static void broadcastPresence() {
+        presenceDirty.set(true);
+        scheduleBroadcast();
+    }
+
+// Queues a system announcement (like "BOB joined.") for all sessions, sent on the next tick.
+
+    private static void announce(String text) {
+        announcements.offer(text);
+        scheduleBroadcast();
+    }
+
+    private static void scheduleBroadcast() {
+        if (broadcastScheduled.compareAndSet(false, true)) {
+            broadcastTimer.schedule(ChatServer::flushBroadcasts, BROADCAST_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+// This method runs once per tick and sends everything that was queued:
+// 1. Clears the scheduled flag first, so changes made while sending schedule a new tick.
+// 2. Sends the queued announcements to every session in one write each
+//    (or just a count, if there were more than MAX_ANNOUNCE).
+// 3. If the online list changed, sends it to every logged-in session.
+
+    private static void flushBroadcasts() {
+        broadcastScheduled.set(false);
+        try {
+            List<String> notes = new ArrayList<>();
+            String note;
+            while ((note = announcements.poll()) != null) notes.add(note);
+            if (notes.size() > MAX_ANNOUNCE) {
+                notes = Collections.singletonList(notes.size() + " users joined or left.");
+            }
+            if (!notes.isEmpty()) broadcastSys(allSessions, notes);
+
+            if (presenceDirty.getAndSet(false)) sendPresenceToAll();
+        } catch (Exception e) {
+            log("* Broadcast failed: " + e);
+        }
+    }
+
+// This method sends all connected users the current online list:
+// 1. It builds a presence message using presenceMessage().
+// 2. Then it sends it to every session that has a username, shard by shard in parallel.
+// 3. This keeps everyone updated about who is online and their status.
+// The whole broadcast is recorded as one chat.PresenceBroadcast event.
+
+    private static void sendPresenceToAll() {
+        ChatEvents.PresenceBroadcast ev = new ChatEvents.PresenceBroadcast();
+        ev.begin();
         String msg = presenceMessage();
-        for (UserSession s : allSessions) {
-            if (s.name()!=null) s.out().println(msg);
+        int sent = allSessions.broadcast(msg, s -> s.name() != null);
+        if (ev.shouldCommit()) {
+            ev.recipients = sent;
+            ev.length = msg.length();
+            ev.commit();
+        }
+    }
+
+    private static void commitPendingMatch(ChatEvents.PendingMatch ev, String freedUser, String requester, String outcome) {
+        if (ev.shouldCommit()) {
+            ev.freedUser = freedUser;
+            ev.requester = requester;
+            ev.outcome = outcome;
+            ev.commit();
         }
     }
 
@@ -480,45 +769,32 @@ public class ChatServer {
 
 
 // This method cleans up when a user disconnects:
-// 1. Removes the user from active sessions and maps.
-// 2. If they were in a chat room, notifies others and removes them from that room.
-// 3. If the room has fewer than 2 participants left, closes it and resets everyone inside.
+// 1. Removes the user from active sessions and maps, stops any monitoring, and retires
+//    the session so no other thread can still put it into a room.
+// 2. If they were in a chat room, notifies others and removes them from that room (departRoom).
+// 3. If the room has fewer than 2 participants left, departRoom closes it and resets everyone inside.
 // 4. Resets the user’s own status (no room, FREE).
-// 5. Broadcasts a system message that the user left and updates presence for everyone.
+// 5. Announces that the user left and updates presence for everyone (on the next broadcast tick).
 
     private static void cleanup(UserSession us) {
         try {
             String name = us.name();
             if (name != null) sessionsByName.remove(name);
             allSessions.remove(us);
-
-            if (us.activeRoomId() != null) {
-                ChatRoom r = rooms.get(us.activeRoomId());
-                if (r != null) {
-                    r.system((name != null ? name : us.addr()) + " disconnected.");
-                    r.remove(us);
-
-                    if (r.participantsCount() < 2) {
-                        for (UserSession other : r.participantsList()) {
-                            other.setActiveRoomId(null);
-                            other.setBusy(false);
-                            other.out().println(sys("Chat " + r.id() + " closed."));
-                            notifyPending(other.name());
-                        }
-                        for (UserSession sup : r.supervisorsList()) {
-                            sup.setActiveRoomId(null);
-                            sup.setBusy(false);
-                            sup.out().println(sys("Chat " + r.id() + " closed."));
-                        }
-                        rooms.remove(r.id());
-                    }
-                }
+            monitor.unsubscribe(us);
+            us.retire();
+
+            String rid = us.activeRoomId();
+            ChatRoom r = rooms.get(rid);
+            if (r != null) {
+                r.system((name != null ? name : us.addr()) + " disconnected.");
+                departRoom(us, r);
             }
 
-            us.setActiveRoomId(null);
+            us.releaseRoom(rid);
             us.setBusy(false);
 
-            broadcastSys(allSessions, (name != null ? name : us.addr()) + " left.");
+            announce((name != null ? name : us.addr()) + " left.");
             broadcastPresence();
         } catch (Exception ignored) {}
     }
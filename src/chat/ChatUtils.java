@@ -1,12 +1,12 @@
 package chat;
 
 import java.text.SimpleDateFormat;
-import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 // Utility class with helper methods for the chat system.
 // - sys(text): Formats a system message with a timestamp.
-// - broadcastSys(): Sends a system message to all given users.
+// - broadcastSys(): Sends system messages to all given users, in one write per user.
 // - log(): Prints a log message with the current date and time.
 // Marked as 'final' with a private constructor so it cannot be instantiated.
 
@@ -19,13 +19,13 @@ public final class ChatUtils {
         return "[" + TS.format(new Date()) + "] * " + text;
     }
 
-    public static void broadcastSys(Collection<UserSession> recipients, String text) {
-        String line = sys(text);
-        for (UserSession s : recipients) {
-            if (s != null && s.out() != null) {
-                s.out().println(line);
-            }
+    public static void broadcastSys(SessionRegistry recipients, List<String> texts) {
+        StringBuilder sb = new StringBuilder();
+        for (String text : texts) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(sys(text));
         }
+        recipients.broadcast(sb.toString(), s -> true);
     }
 
     public static void log(String msg) {
@@ -0,0 +1,99 @@
+package chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The LineDecoder class reads lines of text sent by a client.
+// - Bytes are read into one reusable ByteBuffer and scanned for '\n' there.
+// - A line may be at most maxLine bytes (-Dchat.maxLine, default 8192). A client that
+//   sends more without a newline gets a FrameTooLongException instead of filling the heap.
+// - Lines are always decoded as UTF-8, whatever the server's platform charset is.
+// - Spaces and control characters at both ends are skipped on the raw bytes, and the
+//   String is built straight from the remaining bytes: one String per line, no extra trim() copy.
+// It replaces BufferedReader + InputStreamReader for socket input.
+
+public class LineDecoder {
+
+    public static final int DEFAULT_MAX_LINE = Integer.getInteger("chat.maxLine", 8192);
+
+// Thrown when a client sends a line longer than the limit.
+
+    public static class FrameTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int max;
+
+        public FrameTooLongException(int max) {
+            super("Line longer than " + max + " bytes");
+            this.max = max;
+        }
+
+        public int max() { return max; }
+    }
+
+    private final InputStream in;
+    private final int maxLine;
+    private final ByteBuffer buf;
+    private int scanned;
+
+// The buffer holds one full line plus its "\r\n". It is kept in read mode:
+// bytes between position and limit are received but not yet returned,
+// and 'scanned' marks how far those bytes were already searched for '\n'.
+
+    public LineDecoder(InputStream in, int maxLine) {
+        this.in = in;
+        this.maxLine = maxLine;
+        this.buf = ByteBuffer.allocate(maxLine + 2);
+        this.buf.flip();
+    }
+
+// This method returns the next line, already trimmed:
+// 1. Looks for '\n' in the bytes that were received but not searched yet.
+// 2. If found, returns the bytes before it (without '\r' and outer spaces) as a UTF-8 String.
+// 3. If the line (without "\r\n") is longer than maxLine, throws FrameTooLongException,
+//    also while still waiting for its '\n'.
+// 4. Otherwise reads more bytes from the socket and tries again.
+// At end of stream, returns the last unfinished line if there is one, then null.
+
+    public String readLine() throws IOException {
+        byte[] a = buf.array();
+        while (true) {
+            int start = buf.position();
+            int end = buf.limit();
+            for (int i = start + scanned; i < end; i++) {
+                if (a[i] == '\n') {
+                    int len = (i > start && a[i - 1] == '\r') ? i - 1 - start : i - start;
+                    if (len > maxLine) throw new FrameTooLongException(maxLine);
+                    buf.position(i + 1);
+                    scanned = 0;
+                    return decode(a, start, i);
+                }
+            }
+            scanned = end - start;
+            if (scanned > maxLine + 1) throw new FrameTooLongException(maxLine);
+
+            buf.compact();
+            int n = in.read(a, buf.position(), buf.remaining());
+            if (n > 0) buf.position(buf.position() + n);
+            buf.flip();
+
+            if (n < 0) {
+                if (!buf.hasRemaining()) return null;
+                String last = decode(a, buf.position(), buf.limit());
+                buf.position(buf.limit());
+                scanned = 0;
+                return last;
+            }
+        }
+    }
+
+// Skips bytes <= ' ' at both ends (the same characters String.trim() removes;
+// in UTF-8 these bytes are always single ASCII characters) and decodes the rest.
+
+    private static String decode(byte[] a, int from, int to) {
+        while (from < to && (a[from] & 0xFF) <= ' ') from++;
+        while (to > from && (a[to - 1] & 0xFF) <= ' ') to--;
+        return new String(a, from, to - from, StandardCharsets.UTF_8);
+    }
+}
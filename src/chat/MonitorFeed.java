@@ -0,0 +1,154 @@
+package chat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// The MonitorFeed class lets ADMIN watch events from all rooms at once.
+// - Every room event is written into one shared ring buffer of fixed size.
+// - Publishing is one counter increment and one array write, no matter how many rooms exist.
+// - A single background thread reads the buffer for every subscriber, applies its
+//   filters (user, room, keyword) and sampling, and sends the matches in one write.
+// - Subscribers that fall more than CAPACITY events behind are told how many they missed.
+// Monitoring does not make the admin a supervisor, busy, or a member of any room.
+
+public class MonitorFeed {
+
+// These are the settings and state of the feed:
+// - CAPACITY = ring buffer size (power of two, so seq & MASK gives the slot).
+// - ring = the shared buffer; each slot holds the event written with that sequence number.
+// - head = the next sequence number to publish.
+// - subs = active monitoring subscriptions, one per admin session.
+
+    private static final int  CAPACITY = 1 << 14;
+    private static final int  MASK     = CAPACITY - 1;
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong head = new AtomicLong();
+    private final Map<UserSession, Subscription> subs = new ConcurrentHashMap<>();
+    private final SimpleDateFormat ts = new SimpleDateFormat("HH:mm");
+
+    public MonitorFeed() {
+        Thread pump = new Thread(this::pumpLoop, "monitor-feed");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+// One event in the ring buffer. 'user' is null for room system events.
+
+    private static final class Event {
+        final long seq;
+        final long time;
+        final String room;
+        final String user;
+        final String text;
+        Event(long seq, String room, String user, String text) {
+            this.seq = seq; this.time = System.currentTimeMillis();
+            this.room = room; this.user = user; this.text = text;
+        }
+    }
+
+// One admin's subscription: filters, sampling rate and read position.
+// Filters left as null match everything. Only the pump thread touches cursor/seen.
+
+    public static final class Subscription {
+        final String user;
+        final String room;
+        final String keyword;
+        final int sample;
+        long cursor;
+        long seen;
+
+        public Subscription(String user, String room, String keyword, int sample) {
+            this.user = user;
+            this.room = room;
+            this.keyword = keyword == null ? null : keyword.toLowerCase(Locale.ROOT);
+            this.sample = Math.max(1, sample);
+        }
+
+        boolean matches(Event e) {
+            if (user != null && !user.equals(e.user)) return false;
+            if (room != null && !room.equals(e.room)) return false;
+            return keyword == null || e.text.toLowerCase(Locale.ROOT).contains(keyword);
+        }
+
+        public String describe() {
+            return "user=" + (user == null ? "*" : user)
+                    + " room=" + (room == null ? "*" : room)
+                    + " kw=" + (keyword == null ? "*" : keyword)
+                    + " sample=1/" + sample;
+        }
+    }
+
+// Starts (or replaces) the subscription of this session.
+// It only sees events published from now on.
+
+    public void subscribe(UserSession us, Subscription sub) {
+        sub.cursor = head.get();
+        subs.put(us, sub);
+    }
+
+    public boolean unsubscribe(UserSession us) {
+        return subs.remove(us) != null;
+    }
+
+// Publishes one room event. When nobody is monitoring, this returns at once.
+
+    public void publish(String room, String user, String text) {
+        if (subs.isEmpty()) return;
+        long seq = head.getAndIncrement();
+        ring.set((int) (seq & MASK), new Event(seq, room, user, text));
+    }
+
+// This method runs on the feed thread:
+// 1. Every POLL_NANOS it walks each subscription from its cursor up to head.
+// 2. A slot holding an older event means the writer has not filled it yet → try again next round.
+// 3. A slot holding a newer event means the subscriber fell behind → skip ahead and report it.
+// 4. Matching events are sampled, collected and sent to the admin in one write.
+
+    private void pumpLoop() {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            LockSupport.parkNanos(POLL_NANOS);
+            for (Map.Entry<UserSession, Subscription> en : subs.entrySet()) {
+                Subscription sub = en.getValue();
+                long end = head.get();
+                long skipped = 0;
+                if (end - sub.cursor > CAPACITY) {
+                    skipped = end - CAPACITY - sub.cursor;
+                    sub.cursor = end - CAPACITY;
+                }
+
+                sb.setLength(0);
+                while (sub.cursor < end) {
+                    Event e = ring.get((int) (sub.cursor & MASK));
+                    if (e == null || e.seq < sub.cursor) break;
+                    if (e.seq > sub.cursor) { skipped += e.seq - sub.cursor; sub.cursor = e.seq; continue; }
+                    sub.cursor++;
+                    if (!sub.matches(e)) continue;
+                    if (sub.seen++ % sub.sample != 0) continue;
+                    format(sb, e);
+                }
+                if (skipped > 0) sb.append(ChatUtils.sys("Monitor: skipped " + skipped + " events (too slow).")).append('\n');
+                if (sb.length() > 0) {
+                    try { en.getKey().out().print(sb); } catch (Exception ignored) {}
+                }
+            }
+        }
+    }
+
+    private void format(StringBuilder sb, Event e) {
+        sb.append('[').append(ts.format(new Date(e.time))).append("] ")
+          .append(ChatColors.BLUE).append('<').append(e.room).append("> ");
+        if (e.user != null) sb.append(e.user).append(": ");
+        else sb.append("* ");
+        sb.append(e.text).append(ChatColors.RESET).append('\n');
+    }
+}
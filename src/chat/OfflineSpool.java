@@ -0,0 +1,213 @@
+package chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+// The OfflineSpool class keeps messages for users who are offline (store-and-forward).
+// - Each user has a mailbox file "<USER>.spool" that messages are only appended to.
+// - One line per message: time (ms), sender and text, separated by tabs.
+// - A mailbox holds at most QUOTA messages; messages older than TTL are dropped.
+// - When the user logs in, all waiting messages are sent in a few large writes
+//   and the mailbox file is deleted.
+// Files survive a server restart, so nothing waiting is lost.
+
+public class OfflineSpool {
+
+// These are the spool settings:
+// - QUOTA = maximum number of waiting messages per user.
+// - TTL_MS = how long a message may wait before it expires.
+// - BATCH_CHARS = how much text is collected before one write to the client.
+
+    private static final int  QUOTA       = 1000;
+    private static final long TTL_MS      = TimeUnit.DAYS.toMillis(7);
+    private static final int  BATCH_CHARS = 64 * 1024;
+
+    private final Path dir;
+    private final ConcurrentMap<String, Mailbox> boxes = new ConcurrentHashMap<>();
+
+// One user's mailbox. 'count' is the number of live messages in the file,
+// 'oldest' the time of the oldest one (Long.MAX_VALUE if there are none).
+// All reads and writes of a mailbox file happen while holding the Mailbox lock.
+
+    private static final class Mailbox {
+        final Path file;
+        int count;
+        long oldest = Long.MAX_VALUE;
+        Mailbox(Path file) { this.file = file; }
+    }
+
+    public OfflineSpool(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+// Returns the user's mailbox, loading it from disk the first time.
+// On load, expired messages are dropped (see prune).
+
+    private Mailbox box(String user) {
+        return boxes.computeIfAbsent(user, u -> {
+            Mailbox b = new Mailbox(dir.resolve(u + ".spool"));
+            try {
+                if (Files.exists(b.file)) prune(b);
+            } catch (IOException e) {
+                ChatUtils.log("* Could not read spool of " + u + ": " + e.getMessage());
+            }
+            return b;
+        });
+    }
+
+// Drops expired messages from a mailbox file, rewriting it only if anything was removed,
+// and sets 'count' and 'oldest' for the messages left. Called with the Mailbox lock held
+// (or before the mailbox is shared).
+
+    private static void prune(Mailbox b) throws IOException {
+        List<String> all = Files.readAllLines(b.file, StandardCharsets.UTF_8);
+        List<String> live = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - TTL_MS;
+        long oldest = Long.MAX_VALUE;
+        for (String line : all) {
+            long t = parseTime(line);
+            if (t >= cutoff) {
+                live.add(line);
+                oldest = Math.min(oldest, t);
+            }
+        }
+        if (live.size() != all.size()) Files.write(b.file, live, StandardCharsets.UTF_8);
+        b.count = live.size();
+        b.oldest = oldest;
+    }
+
+// This method stores one message for an offline user:
+// 1. If the mailbox is full (QUOTA) but its oldest message has expired, drops expired
+//    messages first, since on a long-running server they expire long after the mailbox was loaded.
+// 2. Refuses the message if the mailbox is still full.
+// 3. Otherwise appends one line to the user's spool file.
+// Returns false if the message was not stored.
+
+    public boolean append(String to, String from, String text) {
+        Mailbox b = box(to);
+        synchronized (b) {
+            return store(b, to, from, text);
+        }
+    }
+
+// Stores a message unless the same sender already has the same text waiting
+// (e.g. the "wanted to chat" note, which /chat to an offline user would otherwise
+// store again on every try and fill the mailbox with).
+// Returns true if the message is now waiting (stored now or before), false if it was refused.
+
+    public boolean appendOnce(String to, String from, String text) {
+        Mailbox b = box(to);
+        synchronized (b) {
+            if (b.count > 0) {
+                long cutoff = System.currentTimeMillis() - TTL_MS;
+                try (BufferedReader in = Files.newBufferedReader(b.file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] f = line.split("\t", 3);
+                        if (f.length == 3 && f[1].equals(from) && f[2].equals(text) && parseTime(line) >= cutoff) return true;
+                    }
+                } catch (IOException e) {
+                    ChatUtils.log("* Could not read spool of " + to + ": " + e.getMessage());
+                }
+            }
+            return store(b, to, from, text);
+        }
+    }
+
+// Appends one message to a mailbox; called with the Mailbox lock held.
+
+    private boolean store(Mailbox b, String to, String from, String text) {
+        long now = System.currentTimeMillis();
+        if (b.count >= QUOTA && b.oldest < now - TTL_MS) {
+            try {
+                prune(b);
+            } catch (IOException e) {
+                ChatUtils.log("* Could not read spool of " + to + ": " + e.getMessage());
+            }
+        }
+        if (b.count >= QUOTA) return false;
+        String line = now + "\t" + from + "\t" + text + "\n";
+        try {
+            Files.write(b.file, line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            ChatUtils.log("* Could not write spool of " + to + ": " + e.getMessage());
+            return false;
+        }
+        b.count++;
+        b.oldest = Math.min(b.oldest, now);
+        return true;
+    }
+
+// This method delivers all waiting messages to a user who just logged in:
+// 1. Reads the mailbox file, skips expired messages and formats the rest.
+// 2. Puts a header with the number of messages actually being delivered in front;
+//    if all of them expired, sends nothing at all.
+// 3. Sends the text in chunks of BATCH_CHARS, each in one write.
+// 4. If the client took everything (or nothing was left), deletes the file;
+//    if writing failed, keeps it for next time.
+// Returns the number of messages delivered.
+
+    public int deliver(String user, PrintStream out) {
+        Mailbox b = box(user);
+        synchronized (b) {
+            if (b.count == 0) return 0;
+
+            SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+            long cutoff = System.currentTimeMillis() - TTL_MS;
+            StringBuilder body = new StringBuilder();
+            int sent = 0;
+            try (BufferedReader in = Files.newBufferedReader(b.file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", 3);
+                    if (f.length < 3 || parseTime(line) < cutoff) continue;
+                    body.append('[').append(fmt.format(new Date(Long.parseLong(f[0])))).append("] ")
+                        .append(ChatColors.YELLOW).append(f[1]).append(" (offline)").append(ChatColors.RESET)
+                        .append(": ").append(f[2]).append('\n');
+                    sent++;
+                }
+            } catch (IOException e) {
+                ChatUtils.log("* Could not read spool of " + user + ": " + e.getMessage());
+                return 0;
+            }
+
+            if (sent > 0) {
+                body.insert(0, ChatUtils.sys("You have " + sent + " offline message(s):") + "\n");
+                for (int i = 0; i < body.length(); i += BATCH_CHARS) {
+                    out.append(body, i, Math.min(body.length(), i + BATCH_CHARS));
+                }
+                if (out.checkError()) return 0;
+            }
+
+            try {
+                Files.deleteIfExists(b.file);
+                b.count = 0;
+                b.oldest = Long.MAX_VALUE;
+            } catch (IOException e) {
+                ChatUtils.log("* Could not clear spool of " + user + ": " + e.getMessage());
+            }
+            return sent;
+        }
+    }
+
+    private static long parseTime(String line) {
+        int tab = line.indexOf('\t');
+        try {
+            return Long.parseLong(tab < 0 ? line : line.substring(0, tab));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
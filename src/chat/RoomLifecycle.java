@@ -0,0 +1,119 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// The RoomLifecycle class is the one place where chat rooms are opened, joined, left and closed.
+// - It keeps the map of active rooms.
+// - Users are put into a room with UserSession.claimRoom and taken out with releaseRoom,
+//   which are atomic, so two threads can never put the same user in two rooms.
+// - A room is closed only by the thread that wins the OPEN → CLOSING step, so concurrent
+//   /leave, disconnect and /join cannot close a room twice or leave someone stuck in it.
+// - No locks are used; every step is a compare-and-set.
+// Sending messages about these changes is left to the caller (ChatServer).
+
+public class RoomLifecycle {
+
+    private final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+// The users that were released when a room closed.
+// Participants may have people waiting for them (notifyPending); supervisors do not.
+
+    public static final class Closed {
+        private final String roomId;
+        private final List<UserSession> participants;
+        private final List<UserSession> supervisors;
+        Closed(String roomId, List<UserSession> participants, List<UserSession> supervisors) {
+            this.roomId = roomId;
+            this.participants = participants;
+            this.supervisors = supervisors;
+        }
+        public String roomId() { return roomId; }
+        public List<UserSession> participants() { return participants; }
+        public List<UserSession> supervisors() { return supervisors; }
+    }
+
+    public ChatRoom get(String id) { return id == null ? null : rooms.get(id); }
+    public Collection<ChatRoom> all() { return rooms.values(); }
+    public boolean isEmpty() { return rooms.isEmpty(); }
+
+// The result of open(): the new room, or null if it could not be opened.
+// In that case 'aborted' holds who was released again; a supervisor may have
+// joined the room in the short time it was published but not yet claimed.
+
+    public static final class Opened {
+        private final ChatRoom room;
+        private final Closed aborted;
+        Opened(ChatRoom room, Closed aborted) {
+            this.room = room;
+            this.aborted = aborted;
+        }
+        public ChatRoom room() { return room; }
+        public Closed aborted() { return aborted; }
+    }
+
+// This method opens a new room for two users:
+// 1. Creates the room and publishes it in the map first, so anyone who sees
+//    a user's new room ID can also find the room.
+// 2. Claims both users for the room (each becomes BUSY and in this room).
+// 3. If either user is already in another room, closes the room again through close(),
+//    so everyone already pointing at it (a, or a supervisor who joined meanwhile) is released.
+
+    public Opened open(UserSession a, UserSession b) {
+        ChatRoom r = ChatRoom.create(a, b);
+        rooms.put(r.id(), r);
+        if (a.claimRoom(r.id()) && b.claimRoom(r.id())) return new Opened(r, null);
+        return new Opened(null, close(r));
+    }
+
+// This method adds a supervisor to an open room:
+// 1. Claims the supervisor for the room (fails if they are already in one).
+// 2. Adds them to the room; if the room is already closing, the claim is undone.
+// Returns true if the supervisor is now in the room.
+
+    public boolean join(UserSession sup, ChatRoom r) {
+        if (!sup.claimRoom(r.id())) return false;
+        if (r.addSupervisor(sup)) return true;
+        sup.releaseRoom(r.id());
+        return false;
+    }
+
+// This method takes one user out of a room:
+// 1. Removes them from the room and releases them (FREE, no room).
+// 2. If fewer than 2 participants remain, tries to close the room.
+// Returns who was released by the close, or null if the room stays open
+// (or another thread is already closing it).
+
+    public Closed leave(UserSession us, ChatRoom r) {
+        r.remove(us);
+        us.releaseRoom(r.id());
+        if (r.participantsCount() >= 2) return null;
+        return close(r);
+    }
+
+// This method closes a room exactly once:
+// 1. Only the thread that moves the room from OPEN to CLOSING continues.
+// 2. Every member still pointing at this room is released (FREE, no room).
+//    Members who already moved on are skipped, because releaseRoom checks the room ID.
+// 3. The room is removed from the map and marked CLOSED.
+
+    public Closed close(ChatRoom r) {
+        if (!r.beginClose()) return null;
+
+        List<UserSession> parts = new ArrayList<>();
+        for (UserSession u : r.participantsList()) {
+            if (u.releaseRoom(r.id())) parts.add(u);
+        }
+        List<UserSession> sups = new ArrayList<>();
+        for (UserSession u : r.supervisorsList()) {
+            if (u.releaseRoom(r.id())) sups.add(u);
+        }
+
+        rooms.remove(r.id(), r);
+        r.finishClose();
+        return new Closed(r.id(), parts, sups);
+    }
+}
@@ -0,0 +1,119 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+// The SessionRegistry class holds every connected user session.
+// - Sessions are spread over SHARDS concurrent sets, so adding or removing one
+//   costs O(1) and never copies the whole list (unlike CopyOnWriteArrayList).
+// - Iteration is weakly consistent: it never fails, and sees a session added or
+//   removed during the walk either way.
+// - broadcast() sends one line to all sessions; for large counts each shard is
+//   written by its own thread in parallel, and the call waits until all are done.
+
+public class SessionRegistry implements Iterable<UserSession> {
+
+// These are the registry settings:
+// - SHARDS = number of separate sets (power of two).
+// - PARALLEL_MIN = below this many sessions, a broadcast is sent from the calling thread.
+
+    private static final int SHARDS       = 16;
+    private static final int PARALLEL_MIN = 256;
+
+    private final List<Set<UserSession>> shards = new ArrayList<>(SHARDS);
+    private final ExecutorService writers;
+
+    public SessionRegistry() {
+        for (int i = 0; i < SHARDS; i++) shards.add(ConcurrentHashMap.newKeySet());
+        writers = Executors.newFixedThreadPool(SHARDS, r -> {
+            Thread t = new Thread(r, "broadcast-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private Set<UserSession> shard(UserSession us) {
+        int h = System.identityHashCode(us);
+        return shards.get((h ^ (h >>> 16)) & (SHARDS - 1));
+    }
+
+    public void add(UserSession us) { shard(us).add(us); }
+    public void remove(UserSession us) { shard(us).remove(us); }
+
+    public int size() {
+        int n = 0;
+        for (Set<UserSession> s : shards) n += s.size();
+        return n;
+    }
+
+// Walks all shards one after the other.
+
+    @Override
+    public Iterator<UserSession> iterator() {
+        return new Iterator<UserSession>() {
+            private int next = 0;
+            private Iterator<UserSession> cur = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!cur.hasNext() && next < SHARDS) cur = shards.get(next++).iterator();
+                return cur.hasNext();
+            }
+
+            @Override
+            public UserSession next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return cur.next();
+            }
+        };
+    }
+
+// This method sends one line to every session that passes the filter:
+// 1. With few sessions, writes from the calling thread.
+// 2. Otherwise gives each shard to a writer thread, so one slow client only
+//    delays the sessions in its own shard.
+// 3. Waits for all writers, so broadcasts from one thread arrive in order.
+//    A shard whose writer failed is logged and the other shards still count.
+// Returns the number of sessions the line was sent to.
+
+    public int broadcast(String line, Predicate<UserSession> filter) {
+        if (size() < PARALLEL_MIN) {
+            int sent = 0;
+            for (Set<UserSession> s : shards) sent += send(s, line, filter);
+            return sent;
+        }
+
+        List<Callable<Integer>> tasks = new ArrayList<>(SHARDS);
+        for (Set<UserSession> s : shards) tasks.add(() -> send(s, line, filter));
+        int sent = 0;
+        try {
+            for (Future<Integer> f : writers.invokeAll(tasks)) {
+                try {
+                    sent += f.get();
+                } catch (ExecutionException e) {
+                    ChatUtils.log("* Broadcast to one shard failed: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return sent;
+    }
+
+    private static int send(Set<UserSession> shard, String line, Predicate<UserSession> filter) {
+        int sent = 0;
+        for (UserSession s : shard) {
+            if (s.out() != null && filter.test(s)) {
+                s.out().println(line);
+                sent++;
+            }
+        }
+        return sent;
+    }
+}
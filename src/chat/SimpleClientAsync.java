@@ -4,10 +4,12 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 // The SimpleClientAsync class is the chat client program.
-// - Connects to the server on port 7000 using a socket.
-// - Opens input/output streams to communicate with the server and the user’s console.
+// - Connects to the server on port 7000 using a socket (TLS with -Dchat.tls=true, see TlsSupport).
+// - Opens input/output streams to communicate with the server and the user’s console
+//   (both directions are UTF-8, which is what the server reads and writes).
 // - Starts a background thread that constantly reads and prints messages from the server.
 // - Lets the user type messages or commands, which are sent to the server.
 // - The client closes when the user types "/quit" or "goodbye".
@@ -16,9 +18,9 @@ import java.net.Socket;
 public class SimpleClientAsync {
 
     public static void main(String[] args) {
-        try (Socket s = new Socket("localhost", 7000);
-             BufferedReader fromSrv = new BufferedReader(new InputStreamReader(s.getInputStream()));
-             PrintStream toSrv = new PrintStream(s.getOutputStream(), true);
+        try (Socket s = TlsSupport.clientSocket("localhost", 7000);
+             BufferedReader fromSrv = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream toSrv = new PrintStream(s.getOutputStream(), true, "UTF-8");
              BufferedReader fromUser = new BufferedReader(new InputStreamReader(System.in))) {
 
             System.out.println("Connected to " + s.getRemoteSocketAddress());
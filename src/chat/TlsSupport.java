@@ -0,0 +1,127 @@
+package chat;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+// The TlsSupport class creates the server and client sockets, with or without TLS.
+// - Server: TLS is on when -Dchat.tls.keystore=<file.p12> is given
+//   (password from -Dchat.tls.password, default "changeit").
+// - Client: TLS is on with -Dchat.tls=true; the server certificate is checked against
+//   -Dchat.tls.truststore (same password) or, if not given, the JDK's default trust store.
+// - The server keeps a session cache (-Dchat.tls.sessionCacheSize, -Dchat.tls.sessionTimeout
+//   in seconds) and sends session tickets (JDK default since 13), so reconnecting clients
+//   resume their session instead of doing a full handshake.
+// - Only TLS 1.3 and 1.2 are allowed. The handshake runs on the client's own thread,
+//   on its first read or write, so a slow handshake never blocks server.accept().
+// - Sockets use TCP_NODELAY. The handshake is several small writes in a row, and with Nagle's
+//   algorithm each of them can wait for a delayed ACK (about 80 ms per handshake instead of 14
+//   on loopback, see TlsBench); chat lines are small single writes that should go out at once too.
+//
+// A self-signed certificate for testing can be made with:
+//   keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -validity 365
+//           -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1
+//           -storetype PKCS12 -keystore chat.p12 -storepass changeit
+// and used as both the server keystore and the client truststore.
+
+public final class TlsSupport {
+
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static SSLContext clientContext;
+
+    private TlsSupport() {}
+
+    public static boolean serverTlsEnabled() {
+        return System.getProperty("chat.tls.keystore") != null;
+    }
+
+// This method opens the server's listening socket:
+// 1. Without a keystore, returns a plain ServerSocket (same as before).
+// 2. Otherwise loads the keystore, sets up the session cache size and timeout,
+//    and returns a TLS server socket limited to TLS 1.3 / 1.2.
+
+    public static ServerSocket serverSocket(int port) throws IOException {
+        if (!serverTlsEnabled()) return new ServerSocket(port);
+
+        try {
+            char[] password = password();
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(loadKeyStore(System.getProperty("chat.tls.keystore"), password), password);
+
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf.getKeyManagers(), null, null);
+            SSLSessionContext sessions = ctx.getServerSessionContext();
+            sessions.setSessionCacheSize(Integer.getInteger("chat.tls.sessionCacheSize", 20_000));
+            sessions.setSessionTimeout(Integer.getInteger("chat.tls.sessionTimeout", 24 * 60 * 60));
+
+            SSLServerSocket server = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(port);
+            server.setEnabledProtocols(PROTOCOLS);
+            server.setNeedClientAuth(false);
+            return server;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS setup failed: " + e.getMessage(), e);
+        }
+    }
+
+// This method connects a client to the server:
+// 1. Without -Dchat.tls=true, returns a plain Socket.
+// 2. Otherwise opens a TLS socket that checks the server's certificate and host name,
+//    and finishes the handshake before returning, so errors show up right away.
+// The client SSLContext is created once and reused, so its session cache lets
+// later connections to the same server resume instead of doing a full handshake.
+
+    public static Socket clientSocket(String host, int port) throws IOException {
+        if (!Boolean.getBoolean("chat.tls")) {
+            Socket s = new Socket(host, port);
+            s.setTcpNoDelay(true);
+            return s;
+        }
+
+        try {
+            SSLSocket s = (SSLSocket) clientContext().getSocketFactory().createSocket(host, port);
+            s.setEnabledProtocols(PROTOCOLS);
+            s.setTcpNoDelay(true);
+            SSLParameters params = s.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            s.setSSLParameters(params);
+            s.startHandshake();
+            return s;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS setup failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static synchronized SSLContext clientContext() throws IOException, GeneralSecurityException {
+        if (clientContext == null) {
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            String trustStore = System.getProperty("chat.tls.truststore");
+            TrustManager[] tms = null;
+            if (trustStore != null) {
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(loadKeyStore(trustStore, password()));
+                tms = tmf.getTrustManagers();
+            }
+            ctx.init(null, tms, null);
+            clientContext = ctx;
+        }
+        return clientContext;
+    }
+
+    private static char[] password() {
+        return System.getProperty("chat.tls.password", "changeit").toCharArray();
+    }
+
+    private static KeyStore loadKeyStore(String file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            ks.load(in, password);
+        }
+        return ks;
+    }
+}
@@ -0,0 +1,795 @@
+package chat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// The TranscriptIndex class is a full-text search index over chat room messages.
+// - Chat lines are handed over with add() and indexed by a background thread,
+//   so the live fan-out in ChatRoom.say never waits for indexing.
+// - Each message becomes a "doc" (room, user, timestamp) with a global number.
+// - Words are mapped to the list of doc numbers that contain them (inverted index).
+// - Recent docs are kept in memory; every FLUSH_EVERY docs, or once the oldest of them
+//   is FLUSH_AGE_MS old, they are written to a segment on disk, where each posting
+//   list is stored as delta-encoded varints.
+// - A background thread merges runs of MERGE_FACTOR similar-sized segments into one, so the
+//   number of segments (and open files) grows only with the log of the number of docs.
+// - search() returns the newest docs that contain all the given words.
+// Only room, user and time are stored, never the message text itself.
+
+public class TranscriptIndex {
+
+// These are the settings and state of the index:
+// - QUEUE_CAP = how many messages may wait for indexing before new ones are dropped.
+// - FLUSH_EVERY = how many docs are kept in memory before a segment is written.
+// - FLUSH_AGE_MS = how long a doc may stay in memory only, so a crash (or kill -9)
+//   on a quiet server loses at most this much, not everything since the last flush.
+// - inbox = messages waiting for the indexing thread.
+// - lock = guards the in-memory buffer and the segment list between the indexer and searches.
+// - memPostings / memDocs = docs that are not on disk yet; memSince = when the oldest of them came in.
+// - MERGE_FACTOR = how many segments of one size tier are merged together.
+// - segments = immutable on-disk segments, oldest first, covering consecutive doc numbers.
+//   The indexer only appends to this list; only the merge thread replaces segments in it.
+// - dropped = messages that were never indexed (queue full, or a failed segment write).
+//   New drops are logged at most once per DROP_LOG_MS and shown to ADMIN with /search.
+
+    private static final int QUEUE_CAP   = 100_000;
+    private static final int FLUSH_EVERY = 200_000;
+    private static final long FLUSH_AGE_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long DROP_LOG_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int MERGE_FACTOR = 8;
+    public  static final int MAX_TERMS   = 8;
+
+    private final Path dir;
+    private final BlockingQueue<Doc> inbox = new ArrayBlockingQueue<>(QUEUE_CAP);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, IntList> memPostings = new HashMap<>();
+    private final List<Doc> memDocs = new ArrayList<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private final Thread worker;
+    private final ExecutorService merger;
+    private volatile boolean running = true;
+    private int nextDocId;
+    private long memSince;
+    private long dropped;
+    private long droppedLogged;
+    private long lastDropLog;
+
+// A single indexed message, and a single search result.
+
+    public static final class Doc {
+        final String room;
+        final String user;
+        final long ts;
+        final String text;
+        Doc(String room, String user, long ts, String text) {
+            this.room = room; this.user = user; this.ts = ts; this.text = text;
+        }
+        public String room() { return room; }
+        public String user() { return user; }
+        public long ts() { return ts; }
+    }
+
+// Opens (or creates) the index in the given directory:
+// 1. Removes ".tmp" files left by a write or merge that was cut off.
+// 2. Loads every segment already on disk so older transcripts stay searchable.
+//    A segment that cannot be read is logged and skipped, so a damaged index
+//    never stops the server from starting.
+// 3. If a merge finished but its old segments were not removed yet, they are covered
+//    by the merged segment and are removed now.
+// 4. Starts the background indexing and merge threads, and merges if needed.
+// 5. Registers a shutdown hook that writes the in-memory docs to disk.
+
+    public TranscriptIndex(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "seg-*.tmp")) {
+            for (Path p : ds) Files.deleteIfExists(p);
+        }
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "seg-*.post")) {
+            for (Path p : ds) {
+                try {
+                    found.add(Segment.open(p));
+                } catch (IOException | RuntimeException e) {
+                    ChatUtils.log("* Skipping unreadable transcript segment " + p.getFileName() + ": " + e);
+                }
+            }
+        }
+        found.sort(Comparator.comparingInt((Segment s) -> s.base).thenComparingInt(s -> -s.docCount));
+        for (Segment s : found) {
+            if (s.base < nextDocId) {
+                ChatUtils.log("* Removing transcript segment " + s.post.getFileName() + ", already merged.");
+                s.delete();
+                continue;
+            }
+            segments.add(s);
+            nextDocId = s.base + s.docCount;
+        }
+
+        merger = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "transcript-merger");
+            t.setDaemon(true);
+            return t;
+        });
+        merger.execute(this::mergeSegments);
+        worker = new Thread(this::indexLoop, "transcript-indexer");
+        worker.setDaemon(true);
+        worker.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+// Queues one chat message for indexing.
+// This never blocks: if the indexer is too far behind, the message is skipped
+// rather than slowing down the chat.
+
+    public void add(String roomId, String user, String text) {
+        if (!inbox.offer(new Doc(roomId, user, System.currentTimeMillis(), text))) {
+            synchronized (this) { dropped++; }
+        }
+    }
+
+// This method runs on the indexing thread:
+// 1. Waits for messages (at most a second), then drains everything that is queued in one go.
+// 2. Indexes the batch under the write lock.
+// 3. When enough docs are in memory, or the oldest has waited FLUSH_AGE_MS,
+//    writes them out as a new segment. This is also checked when no message came in.
+
+    private void indexLoop() {
+        List<Doc> batch = new ArrayList<>();
+        while (running) {
+            try {
+                logDrops();
+                Doc first = inbox.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    inbox.drainTo(batch);
+                }
+                boolean old = !memDocs.isEmpty() && System.currentTimeMillis() - memSince >= FLUSH_AGE_MS;
+                if (batch.isEmpty() && !old) continue;
+
+                lock.writeLock().lock();
+                try {
+                    for (Doc d : batch) indexDoc(d);
+                    if (memDocs.size() >= FLUSH_EVERY || old) flush();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void logDrops() {
+        long now = System.currentTimeMillis();
+        if (dropped > droppedLogged && now - lastDropLog >= DROP_LOG_MS) {
+            ChatUtils.log("* Transcript index: " + (dropped - droppedLogged) + " more messages not indexed (" + dropped + " total).");
+            droppedLogged = dropped;
+            lastDropLog = now;
+        }
+    }
+
+    private void indexDoc(Doc d) {
+        int docId = nextDocId++;
+        if (memDocs.isEmpty()) memSince = System.currentTimeMillis();
+        memDocs.add(new Doc(d.room, d.user, d.ts, null));
+        for (String term : terms(d.text)) {
+            memPostings.computeIfAbsent(term, k -> new IntList()).add(docId);
+        }
+    }
+
+// Writes the in-memory docs as a new segment and clears the buffer.
+// If the write fails (e.g. disk full), the buffer is dropped anyway and counted
+// in 'dropped', so memory stays bounded and the next batch does not retry a huge write.
+// Must be called while holding the write lock.
+
+    private void flush() {
+        if (memDocs.isEmpty()) return;
+        int base = nextDocId - memDocs.size();
+        try {
+            segments.add(Segment.write(dir, base, memDocs, memPostings));
+            if (running) merger.execute(this::mergeSegments);
+        } catch (IOException e) {
+            ChatUtils.log("* Transcript index flush failed, dropping " + memDocs.size() + " messages: " + e.getMessage());
+            synchronized (this) { dropped += memDocs.size(); }
+        } finally {
+            memDocs.clear();
+            memPostings.clear();
+        }
+    }
+
+// This method runs on the merge thread after every flush:
+// 1. Under the read lock, looks for a run of segments to merge (see mergeRun).
+// 2. Writes the merged segment without any lock, so searches and indexing go on meanwhile.
+// 3. Under the write lock, swaps the run for the merged segment, then deletes the old files.
+// 4. Repeats, since one merge can complete a run of the next size tier.
+// A failed merge is logged; the old segments simply stay in use.
+
+    private void mergeSegments() {
+        while (true) {
+            List<Segment> run;
+            lock.readLock().lock();
+            try {
+                run = mergeRun();
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (run == null) return;
+
+            Segment merged;
+            try {
+                merged = Segment.merge(dir, run);
+            } catch (IOException | RuntimeException e) {
+                ChatUtils.log("* Transcript segment merge failed: " + e);
+                return;
+            }
+
+            lock.writeLock().lock();
+            try {
+                int at = segments.indexOf(run.get(0));
+                segments.subList(at, at + run.size()).clear();
+                segments.add(at, merged);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (Segment s : run) {
+                try {
+                    s.delete();
+                } catch (IOException e) {
+                    ChatUtils.log("* Could not remove merged segment " + s.post.getFileName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+// Returns the newest segments to merge, or null if none:
+// the longest run at the end of the list that are all in the newest segment's size tier,
+// once it holds at least MERGE_FACTOR segments. Merging the whole run keeps the tiers
+// from oldest to newest never increasing, so every tier holds fewer than MERGE_FACTOR segments.
+
+    private List<Segment> mergeRun() {
+        int n = segments.size();
+        if (n < MERGE_FACTOR) return null;
+        int tier = tier(segments.get(n - 1).docCount);
+        int from = n - 1;
+        while (from > 0 && tier(segments.get(from - 1).docCount) == tier) from--;
+        return n - from >= MERGE_FACTOR ? new ArrayList<>(segments.subList(from, n)) : null;
+    }
+
+// Size tier of a segment: 0 below MERGE_FACTOR full flushes, then one more
+// for every factor of MERGE_FACTOR. Small timed flushes all count as tier 0.
+
+    static int tier(int docCount) {
+        int tier = 0;
+        for (long size = (long) FLUSH_EVERY * MERGE_FACTOR; docCount >= size; size *= MERGE_FACTOR) tier++;
+        return tier;
+    }
+
+// Stops the indexer and writes whatever is still queued or in memory to disk.
+// A merge that is running is not interrupted (an interrupt would close the segment
+// files it shares with searches); if the JVM exits first, its ".tmp" files are removed
+// on the next start.
+
+    public void close() {
+        running = false;
+        merger.shutdown();
+        worker.interrupt();
+        lock.writeLock().lock();
+        try {
+            List<Doc> rest = new ArrayList<>();
+            inbox.drainTo(rest);
+            for (Doc d : rest) indexDoc(d);
+            flush();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+// This method finds the newest messages that contain all the given words:
+// 1. Splits the query into words the same way messages are split.
+// 2. Looks in the in-memory buffer first, then in segments from newest to oldest.
+// 3. In each place, intersects the posting lists of all words.
+// 4. Stops once 'limit' results are found and returns them newest first.
+// Throws IllegalArgumentException if the query has more than MAX_TERMS words.
+
+    public List<Doc> search(String query, int limit) throws IOException {
+        List<String> terms = new ArrayList<>(terms(query));
+        List<Doc> hits = new ArrayList<>();
+        if (terms.isEmpty()) return hits;
+        if (terms.size() > MAX_TERMS) throw new IllegalArgumentException("Too many words (max " + MAX_TERMS + ").");
+
+        lock.readLock().lock();
+        try {
+            int base = nextDocId - memDocs.size();
+            int[][] lists = new int[terms.size()][];
+            boolean missing = false;
+            for (int i = 0; i < lists.length; i++) {
+                IntList l = memPostings.get(terms.get(i));
+                if (l == null) { missing = true; break; }
+                lists[i] = l.toArray();
+            }
+            if (!missing) {
+                int[] ids = intersect(lists);
+                for (int i = ids.length - 1; i >= 0 && hits.size() < limit; i--) {
+                    hits.add(memDocs.get(ids[i] - base));
+                }
+            }
+
+            for (int s = segments.size() - 1; s >= 0 && hits.size() < limit; s--) {
+                segments.get(s).search(terms, limit - hits.size(), hits);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return hits;
+    }
+
+    public synchronized long dropped() { return dropped; }
+
+// Splits text into lowercase words made of letters and digits.
+// Each word is returned once, even if it appears several times.
+
+    static Set<String> terms(String text) {
+        Set<String> out = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) start = i;
+            if (!word && start >= 0) {
+                if (i - start <= 64) out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+// Intersects sorted doc-id lists, starting from the shortest one.
+
+    static int[] intersect(int[][] lists) {
+        int[][] sorted = lists.clone();
+        Arrays.sort(sorted, Comparator.comparingInt(a -> a.length));
+        int[] acc = sorted[0];
+        for (int k = 1; k < sorted.length && acc.length > 0; k++) {
+            int[] b = sorted[k];
+            int[] out = new int[acc.length];
+            int n = 0, i = 0, j = 0;
+            while (i < acc.length && j < b.length) {
+                if (acc[i] == b[j]) { out[n++] = acc[i]; i++; j++; }
+                else if (acc[i] < b[j]) i++;
+                else j++;
+            }
+            acc = Arrays.copyOf(out, n);
+        }
+        return acc;
+    }
+
+// A growable list of ints, used for in-memory posting lists.
+
+    static final class IntList {
+        private int[] a = new int[4];
+        private int n;
+        void add(int v) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+        int[] toArray() { return Arrays.copyOf(a, n); }
+        void clear() { n = 0; }
+    }
+
+// A Segment is one immutable part of the index on disk, holding docs base .. base+docCount-1.
+// It has two files, named seg-<base>-<docCount>:
+// - .post : all posting lists (delta + varint encoded), then the term dictionary sorted
+//   by term (term, offset, length), then the dictionary's offset as the last 8 bytes.
+// - .docs : one DOC_BYTES record per doc (timestamp, then room and user as offsets into
+//   the name area), then the name area (each room/user name once), then the doc count.
+// Only every DICT_SKIP-th dictionary term is kept in memory. The rest of the dictionary,
+// the posting lists and the doc table are read from disk on demand, so a segment costs
+// about the same heap whatever its size.
+// Both files are first written under a ".tmp" name and then renamed atomically, .docs before
+// .post. Since only seg-*.post files are loaded, a crash mid-write leaves no half segment behind.
+
+    static final class Segment implements Closeable {
+        static final int DICT_SKIP = 64;
+        static final int DOC_BYTES = 16;
+
+        final int base;
+        final int docCount;
+        final Path post;
+        private final FileChannel postings;
+        private final FileChannel docs;
+        private final long dictPos;
+        private final long dictEnd;
+        private final String[] skipTerms;
+        private final long[] skipPos;
+
+        private Segment(int base, int docCount, Path post, FileChannel postings, FileChannel docs,
+                        long dictPos, long dictEnd, String[] skipTerms, long[] skipPos) {
+            this.base = base; this.docCount = docCount; this.post = post;
+            this.postings = postings; this.docs = docs;
+            this.dictPos = dictPos; this.dictEnd = dictEnd;
+            this.skipTerms = skipTerms; this.skipPos = skipPos;
+        }
+
+        static Path file(Path dir, int base, int docCount) {
+            return dir.resolve(String.format("seg-%010d-%010d.post", base, docCount));
+        }
+
+// Writes the in-memory docs and posting lists as a new segment.
+
+        static Segment write(Path dir, int base, List<Doc> docs, Map<String, IntList> postings) throws IOException {
+            Writer w = new Writer(file(dir, base, docs.size()));
+            try {
+                for (Doc d : docs) w.doc(d.room, d.user, d.ts);
+                List<String> terms = new ArrayList<>(postings.keySet());
+                Collections.sort(terms);
+                for (String t : terms) w.term(t, postings.get(t).toArray());
+                return w.finish();
+            } catch (IOException | RuntimeException e) {
+                w.abort();
+                throw e;
+            }
+        }
+
+// This method merges adjacent segments (oldest first) into one new segment:
+// 1. Copies the doc tables one after the other, so doc numbers stay the same.
+// 2. Walks the sorted dictionaries of all segments side by side; for every term, the
+//    posting lists of the segments that have it are joined in order and written once.
+// The old segments are left as they are; the caller swaps them for the new one.
+
+        static Segment merge(Path dir, List<Segment> parts) throws IOException {
+            int count = 0;
+            for (Segment s : parts) count += s.docCount;
+            Writer w = new Writer(file(dir, parts.get(0).base, count));
+            List<TermCursor> cursors = new ArrayList<>();
+            try {
+                for (Segment s : parts) s.copyDocs(w);
+
+                PriorityQueue<TermCursor> queue = new PriorityQueue<>(
+                        Comparator.comparing((TermCursor c) -> c.term).thenComparingInt(c -> c.order));
+                for (int i = 0; i < parts.size(); i++) {
+                    TermCursor c = new TermCursor(parts.get(i), i);
+                    cursors.add(c);
+                    if (c.next()) queue.add(c);
+                }
+                IntList ids = new IntList();
+                while (!queue.isEmpty()) {
+                    String term = queue.peek().term;
+                    ids.clear();
+                    while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                        TermCursor c = queue.poll();
+                        for (int id : c.seg.readPostings(c.pos, c.len)) ids.add(id);
+                        if (c.next()) queue.add(c);
+                    }
+                    w.term(term, ids.toArray());
+                }
+                return w.finish();
+            } catch (IOException | RuntimeException e) {
+                w.abort();
+                throw e;
+            } finally {
+                for (TermCursor c : cursors) c.close();
+            }
+        }
+
+// Opens a segment: checks that the doc count matches the file name, and reads the
+// dictionary once to keep every DICT_SKIP-th term and its position.
+
+        static Segment open(Path post) throws IOException {
+            String name = post.getFileName().toString();
+            int base = Integer.parseInt(name.substring(4, 14));
+            int docCount = Integer.parseInt(name.substring(15, 25));
+
+            FileChannel docs = null;
+            FileChannel ch = null;
+            try {
+                docs = FileChannel.open(docsFile(post), StandardOpenOption.READ);
+                if (docs.size() < (long) docCount * DOC_BYTES + 4
+                        || read(docs, docs.size() - 4, 4).getInt() != docCount) {
+                    throw new IOException("doc table does not match " + name);
+                }
+
+                ch = FileChannel.open(post, StandardOpenOption.READ);
+                long dictEnd = ch.size() - 8;
+                long dictPos = read(ch, dictEnd, 8).getLong();
+                if (dictPos < 0 || dictPos > dictEnd) throw new IOException("bad dictionary offset in " + name);
+
+                List<String> terms = new ArrayList<>();
+                List<Long> positions = new ArrayList<>();
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(post)))) {
+                    in.skipNBytes(dictPos);
+                    long pos = dictPos;
+                    for (int i = 0; pos < dictEnd; i++) {
+                        byte[] term = new byte[in.readUnsignedShort()];
+                        in.readFully(term);
+                        in.skipNBytes(12);
+                        if (i % DICT_SKIP == 0) {
+                            terms.add(new String(term, StandardCharsets.UTF_8));
+                            positions.add(pos);
+                        }
+                        pos += 2 + term.length + 12;
+                    }
+                }
+                long[] skipPos = new long[positions.size()];
+                for (int i = 0; i < skipPos.length; i++) skipPos[i] = positions.get(i);
+                return new Segment(base, docCount, post, ch, docs, dictPos, dictEnd,
+                        terms.toArray(new String[0]), skipPos);
+            } catch (IOException | RuntimeException e) {
+                if (ch != null) ch.close();
+                if (docs != null) docs.close();
+                throw e;
+            }
+        }
+
+        void search(List<String> terms, int limit, List<Doc> hits) throws IOException {
+            int[][] lists = new int[terms.size()][];
+            for (int i = 0; i < lists.length; i++) {
+                long[] entry = lookup(terms.get(i));
+                if (entry == null) return;
+                lists[i] = readPostings(entry[0], (int) entry[1]);
+            }
+            int[] ids = intersect(lists);
+            for (int i = ids.length - 1; i >= 0 && limit > 0; i--, limit--) {
+                hits.add(doc(ids[i] - base));
+            }
+        }
+
+// Finds a term's posting list (offset, length): picks the block of at most DICT_SKIP
+// entries it must be in from the in-memory terms, then reads and scans only that block.
+
+        private long[] lookup(String term) throws IOException {
+            int k = Arrays.binarySearch(skipTerms, term);
+            if (k < 0) k = -k - 2;
+            if (k < 0) return null;
+            long from = skipPos[k];
+            long to = k + 1 < skipPos.length ? skipPos[k + 1] : dictEnd;
+            ByteBuffer block = read(postings, from, (int) (to - from));
+            byte[] want = term.getBytes(StandardCharsets.UTF_8);
+            while (block.hasRemaining()) {
+                byte[] t = new byte[block.getShort() & 0xFFFF];
+                block.get(t);
+                long pos = block.getLong();
+                int len = block.getInt();
+                if (Arrays.equals(t, want)) return new long[]{pos, len};
+            }
+            return null;
+        }
+
+        private Doc doc(int local) throws IOException {
+            ByteBuffer rec = read(docs, (long) local * DOC_BYTES, DOC_BYTES);
+            long ts = rec.getLong();
+            return new Doc(name(rec.getInt()), name(rec.getInt()), ts, null);
+        }
+
+        private String name(int offset) throws IOException {
+            long pos = (long) docCount * DOC_BYTES + offset;
+            int len = read(docs, pos, 2).getShort() & 0xFFFF;
+            ByteBuffer b = read(docs, pos + 2, len);
+            return new String(b.array(), 0, len, StandardCharsets.UTF_8);
+        }
+
+// Streams this segment's doc table into a Writer (used by merge).
+
+        private void copyDocs(Writer w) throws IOException {
+            long namesPos = (long) docCount * DOC_BYTES;
+            byte[] names = read(docs, namesPos, (int) (docs.size() - 4 - namesPos)).array();
+            Map<Integer, String> cache = new HashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(docsFile(post))))) {
+                for (int i = 0; i < docCount; i++) {
+                    long ts = in.readLong();
+                    String room = cache.computeIfAbsent(in.readInt(), off -> decodeName(names, off));
+                    String user = cache.computeIfAbsent(in.readInt(), off -> decodeName(names, off));
+                    w.doc(room, user, ts);
+                }
+            }
+        }
+
+        private static String decodeName(byte[] names, int off) {
+            int len = ((names[off] & 0xFF) << 8) | (names[off + 1] & 0xFF);
+            return new String(names, off + 2, len, StandardCharsets.UTF_8);
+        }
+
+        private int[] readPostings(long pos, int len) throws IOException {
+            ByteBuffer bb = read(postings, pos, len);
+            IntList out = new IntList();
+            int prev = 0;
+            while (bb.hasRemaining()) {
+                prev += readVarInt(bb);
+                out.add(prev);
+            }
+            return out.toArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                postings.close();
+            } finally {
+                docs.close();
+            }
+        }
+
+// Closes the segment and removes its files, .post first, so a crash in between
+// never leaves a .post without its .docs.
+
+        void delete() throws IOException {
+            close();
+            Files.deleteIfExists(post);
+            Files.deleteIfExists(docsFile(post));
+        }
+
+        private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+            ByteBuffer bb = ByteBuffer.allocate(len);
+            while (bb.hasRemaining()) {
+                if (ch.read(bb, pos + bb.position()) < 0) throw new EOFException();
+            }
+            return bb.flip();
+        }
+
+        static Path docsFile(Path post) {
+            String name = post.getFileName().toString();
+            return post.resolveSibling(name.substring(0, name.length() - 5) + ".docs");
+        }
+    }
+
+// Writes one segment: docs first, in order, then terms in sorted order.
+// Names and the dictionary are collected in memory and written at the end,
+// then both files are renamed into place (see Segment).
+
+    static final class Writer {
+        private final Path post;
+        private final Path postTmp;
+        private final Path docs;
+        private final Path docsTmp;
+        private final DataOutputStream postOut;
+        private final DataOutputStream docsOut;
+        private final ByteArrayOutputStream dict = new ByteArrayOutputStream();
+        private final DataOutputStream dictOut = new DataOutputStream(dict);
+        private final ByteArrayOutputStream names = new ByteArrayOutputStream();
+        private final DataOutputStream namesOut = new DataOutputStream(names);
+        private final Map<String, Integer> nameOffsets = new HashMap<>();
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        private long pos;
+        private int docCount;
+
+        Writer(Path post) throws IOException {
+            this.post = post;
+            this.postTmp = post.resolveSibling(post.getFileName() + ".tmp");
+            this.docs = Segment.docsFile(post);
+            this.docsTmp = docs.resolveSibling(docs.getFileName() + ".tmp");
+            this.postOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(postTmp)));
+            DataOutputStream d;
+            try {
+                d = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(docsTmp)));
+            } catch (IOException e) {
+                postOut.close();
+                Files.deleteIfExists(postTmp);
+                throw e;
+            }
+            this.docsOut = d;
+        }
+
+        void doc(String room, String user, long ts) throws IOException {
+            docsOut.writeLong(ts);
+            docsOut.writeInt(nameOffset(room));
+            docsOut.writeInt(nameOffset(user));
+            docCount++;
+        }
+
+        private int nameOffset(String name) throws IOException {
+            Integer off = nameOffsets.get(name);
+            if (off == null) {
+                off = names.size();
+                writeString(namesOut, name);
+                nameOffsets.put(name, off);
+            }
+            return off;
+        }
+
+        void term(String term, int[] ids) throws IOException {
+            buf.reset();
+            int prev = 0;
+            for (int id : ids) {
+                writeVarInt(buf, id - prev);
+                prev = id;
+            }
+            buf.writeTo(postOut);
+            writeString(dictOut, term);
+            dictOut.writeLong(pos);
+            dictOut.writeInt(buf.size());
+            pos += buf.size();
+        }
+
+        Segment finish() throws IOException {
+            dict.writeTo(postOut);
+            postOut.writeLong(pos);
+            postOut.close();
+            names.writeTo(docsOut);
+            docsOut.writeInt(docCount);
+            docsOut.close();
+
+            Files.move(docsTmp, docs, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(postTmp, post, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return Segment.open(post);
+        }
+
+        void abort() throws IOException {
+            try {
+                postOut.close();
+                docsOut.close();
+            } catch (IOException ignored) {
+            }
+            Files.deleteIfExists(postTmp);
+            Files.deleteIfExists(docsTmp);
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(b.length);
+            out.write(b);
+        }
+    }
+
+// Reads one segment's dictionary in order, one term at a time (used by merge).
+
+    private static final class TermCursor implements Closeable {
+        final Segment seg;
+        final int order;
+        private final DataInputStream in;
+        private long left;
+        String term;
+        long pos;
+        int len;
+
+        TermCursor(Segment seg, int order) throws IOException {
+            this.seg = seg;
+            this.order = order;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(seg.post)));
+            in.skipNBytes(seg.dictPos);
+            this.left = seg.dictEnd - seg.dictPos;
+        }
+
+        boolean next() throws IOException {
+            if (left <= 0) return false;
+            byte[] t = new byte[in.readUnsignedShort()];
+            in.readFully(t);
+            term = new String(t, StandardCharsets.UTF_8);
+            pos = in.readLong();
+            len = in.readInt();
+            left -= 2 + t.length + 12;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException { in.close(); }
+    }
+
+    static void writeVarInt(OutputStream out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    static int readVarInt(ByteBuffer bb) {
+        int v = 0, shift = 0;
+        byte b;
+        do {
+            b = bb.get();
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+}
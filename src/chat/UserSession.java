@@ -1,31 +1,87 @@
 package chat;
 
-import java.io.BufferedReader;
 import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicReference;
 
 // The UserSession class represents a single connected user in the chat system.
 // - It stores the user’s name, busy status, and the ID of the room they are in.
 // - It uses SocketData to handle input (reading messages) and output (sending messages).
 // - Provides methods to get and update the user’s name, status, and active room.
 // - Also allows access to the client’s address, input stream, and output stream.
+// - Busy status and room are kept together in one immutable Status object that is
+//   swapped atomically, so other users' threads can claim or release this user for
+//   a room without locks and without ever seeing a half-updated state.
 // In short, this is the "profile" of each connected user while they are online.
 
 public class UserSession {
     private final SocketData sd;
-    private String name;
-    private boolean busy;
-    private String activeRoomId;
+    private volatile String name;
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.FREE);
     public UserSession(SocketData sd) {
         this.sd = sd;
     }
+
+    private static final class Status {
+        static final Status FREE = new Status(null, false, false);
+        static final Status GONE = new Status(null, false, true);
+        final String roomId;
+        final boolean busy;
+        final boolean gone;
+        Status(String roomId, boolean busy, boolean gone) { this.roomId = roomId; this.busy = busy; this.gone = gone; }
+    }
+
     public String name() { return name; }
     public void setName(String n) { this.name = n; }
-    public boolean isBusy() { return busy; }
-    public void setBusy(boolean b) { this.busy = b; }
-    public String activeRoomId() { return activeRoomId; }
-    public void setActiveRoomId(String id) { this.activeRoomId = id; }
+    public boolean isBusy() { return status.get().busy; }
+    public String activeRoomId() { return status.get().roomId; }
+
+// Changes only the busy flag, keeping the current room.
+
+    public void setBusy(boolean b) {
+        Status cur;
+        do {
+            cur = status.get();
+        } while (!status.compareAndSet(cur, new Status(cur.roomId, b, cur.gone)));
+    }
+
+// Puts the user in the given room and marks them busy.
+// Fails (returns false) if the user is already in a room or has disconnected.
+
+    public boolean claimRoom(String roomId) {
+        Status cur;
+        do {
+            cur = status.get();
+            if (cur.roomId != null || cur.gone) return false;
+        } while (!status.compareAndSet(cur, new Status(roomId, true, false)));
+        return true;
+    }
+
+// Takes the user out of the given room and marks them free.
+// Does nothing (returns false) if the user is not in that room anymore,
+// so releasing the same user twice is harmless.
+
+    public boolean releaseRoom(String roomId) {
+        Status cur;
+        do {
+            cur = status.get();
+            if (roomId == null || !roomId.equals(cur.roomId)) return false;
+        } while (!status.compareAndSet(cur, cur.gone ? Status.GONE : Status.FREE));
+        return true;
+    }
+
+// Marks the user as disconnected, keeping their current room so it can still be left.
+// From now on claimRoom always fails, so another thread that still holds this
+// session cannot put it into a new room while it is being cleaned up.
+
+    public void retire() {
+        Status cur;
+        do {
+            cur = status.get();
+        } while (!status.compareAndSet(cur, new Status(cur.roomId, cur.busy, true)));
+    }
+
     public String addr() { return sd.getClientAddress(); }
-    public BufferedReader in() { return sd.getReader(); }
+    public LineDecoder in() { return sd.getReader(); }
     public PrintStream out() { return sd.getOutputStream(); }
 }
 
@@ -0,0 +1,183 @@
+package chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The ConnectionStorm class measures how the server copes with a reconnect storm.
+// - registry: in this process, N sessions connect and then disconnect from many threads,
+//   while a ticker sends one line to every session each 100 ms (like the broadcast tick).
+//   It runs once with a CopyOnWriteArrayList (the old allSessions) and once with SessionRegistry.
+// - tcp: against a running ChatServer, opens N connections from many threads and waits
+//   until each one got the username prompt, closes them all, then does the same again
+//   (the reconnect after a network blip). Uses TlsSupport.clientSocket, so -Dchat.tls=true works.
+// Usage: java chat.ConnectionStorm registry [sessions] [threads]
+//        java chat.ConnectionStorm tcp [host] [port] [clients] [threads]
+// Each session holds a PrintStream with its own buffers, so 50k sessions need about -Xmx2g;
+// for tcp, both processes need a file limit (ulimit -n) above the client count.
+
+public class ConnectionStorm {
+
+    private static final String PROMPT = "Enter username";
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "registry";
+        if (mode.equals("registry")) {
+            int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+            registry(sessions, threads);
+        } else if (mode.equals("tcp")) {
+            String host = args.length > 1 ? args[1] : "localhost";
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : 7000;
+            int clients = args.length > 3 ? Integer.parseInt(args[3]) : 5_000;
+            int threads = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+            tcp(host, port, clients, threads);
+        } else {
+            System.out.println("Usage: java chat.ConnectionStorm registry [sessions] [threads]");
+            System.out.println("       java chat.ConnectionStorm tcp [host] [port] [clients] [threads]");
+        }
+    }
+
+// A session store as the server uses it: add on connect, remove on disconnect,
+// and one line to everyone on each broadcast tick.
+
+    private interface Store {
+        void add(UserSession us);
+        void remove(UserSession us);
+        int broadcast(String line);
+    }
+
+    private static void registry(int sessions, int threads) throws Exception {
+        List<UserSession> all = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) all.add(session(i));
+
+        CopyOnWriteArrayList<UserSession> list = new CopyOnWriteArrayList<>();
+        storm("CopyOnWriteArrayList", all, threads, new Store() {
+            public void add(UserSession us) { list.add(us); }
+            public void remove(UserSession us) { list.remove(us); }
+            public int broadcast(String line) {
+                int n = 0;
+                for (UserSession s : list) { s.out().println(line); n++; }
+                return n;
+            }
+        });
+
+        SessionRegistry reg = new SessionRegistry();
+        storm("SessionRegistry", all, threads, new Store() {
+            public void add(UserSession us) { reg.add(us); }
+            public void remove(UserSession us) { reg.remove(us); }
+            public int broadcast(String line) { return reg.broadcast(line, s -> true); }
+        });
+    }
+
+// This method runs one storm on a store:
+// 1. Starts the ticker, which broadcasts every 100 ms until the storm is over.
+// 2. All threads add their share of the sessions (the connect wave), then all remove them.
+// 3. Prints how long each wave took and how many ticks and lines were sent meanwhile.
+
+    private static void storm(String name, List<UserSession> all, int threads, Store store) throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger ticks = new AtomicInteger();
+        AtomicInteger lines = new AtomicInteger();
+        Thread ticker = new Thread(() -> {
+            while (!done.get()) {
+                lines.addAndGet(store.broadcast("* Online: ..."));
+                ticks.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "storm-ticker");
+        ticker.start();
+
+        long connect = timed(all, threads, store::add);
+        long disconnect = timed(all, threads, store::remove);
+        done.set(true);
+        ticker.join();
+
+        System.out.printf("%-20s %6d sessions, %d threads: connect %6d ms, disconnect %6d ms, %d ticks sent %d lines%n",
+                name, all.size(), threads, connect, disconnect, ticks.get(), lines.get());
+    }
+
+// A session on a socket that reads nothing and discards all output.
+
+    private static UserSession session(int i) throws IOException {
+        Socket s = new Socket() {
+            @Override public InputStream getInputStream() { return new ByteArrayInputStream(new byte[0]); }
+            @Override public OutputStream getOutputStream() { return OutputStream.nullOutputStream(); }
+            @Override public InetAddress getInetAddress() { return InetAddress.getLoopbackAddress(); }
+            @Override public int getPort() { return i; }
+        };
+        return new UserSession(new SocketData(s));
+    }
+
+    private static void tcp(String host, int port, int clients, int threads) throws Exception {
+        List<Socket> open = new CopyOnWriteArrayList<>();
+        for (int round = 1; round <= 2; round++) {
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < clients; i++) ids.add(i);
+            long connect = timed(ids, threads, i -> open.add(connect(host, port)));
+            long disconnect = timed(open, threads, Socket::close);
+            open.clear();
+            System.out.printf("%s %d clients, %d threads: connect + prompt %6d ms (%.0f /s), close %6d ms%n",
+                    round == 1 ? "storm    " : "reconnect", clients, threads, connect,
+                    clients * 1000.0 / Math.max(1, connect), disconnect);
+        }
+    }
+
+// Connects and waits for the username prompt, which the server sends once the
+// client's thread runs and the session is registered.
+
+    private static Socket connect(String host, int port) throws IOException {
+        Socket s = TlsSupport.clientSocket(host, port);
+        try {
+            LineDecoder in = new LineDecoder(s.getInputStream(), LineDecoder.DEFAULT_MAX_LINE);
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) throw new IOException("server closed the connection before the prompt");
+            } while (!line.contains(PROMPT));
+            return s;
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    private interface Task<T> {
+        void run(T item) throws Exception;
+    }
+
+// Runs the task for every item, spread over the threads; returns the time in ms.
+
+    private static <T> long timed(Collection<T> items, int threads, Task<T> task) throws Exception {
+        List<T> all = new ArrayList<>(items);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<T> part = all.subList(all.size() * t / threads, all.size() * (t + 1) / threads);
+            tasks.add(() -> {
+                for (T item : part) task.run(item);
+                return null;
+            });
+        }
+        long t0 = System.nanoTime();
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) f.get();
+        } finally {
+            pool.shutdown();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+    }
+}
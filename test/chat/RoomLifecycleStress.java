@@ -0,0 +1,213 @@
+package chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// The RoomLifecycleStress class is a stress test for RoomLifecycle.
+// - Many threads run /chat (open), /leave, disconnect and /join at the same time
+//   on a small pool of users, so the same users and rooms are hit from all sides.
+// - A disconnect works like ChatServer.cleanup: the user leaves their room, is released,
+//   and the slot gets a fresh session (the user reconnects).
+// - When all threads are done, the invariants are checked on every session ever used
+//   and on every room still in the map.
+// Usage: java chat.RoomLifecycleStress [threads] [users] [opsPerThread]
+// Exits with status 1 if any invariant is broken.
+
+public class RoomLifecycleStress {
+
+    private static final AtomicInteger nextPort = new AtomicInteger();
+
+    private final RoomLifecycle rooms = new RoomLifecycle();
+    private final AtomicReferenceArray<UserSession> slots;
+    private final Queue<UserSession> everyone = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger newestRoom = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> closes = new ConcurrentHashMap<>();
+    private final List<String> problems = new CopyOnWriteArrayList<>();
+
+    private RoomLifecycleStress(int users) throws IOException {
+        slots = new AtomicReferenceArray<>(users);
+        for (int i = 0; i < users; i++) slots.set(i, session(i));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int users   = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int ops     = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+
+        // Every disconnect creates a new session, and all of them are kept for the final check;
+        // they never read, so a small line buffer is enough.
+        if (System.getProperty("chat.maxLine") == null) System.setProperty("chat.maxLine", "16");
+
+        RoomLifecycleStress test = new RoomLifecycleStress(users);
+        long t0 = System.nanoTime();
+        test.run(threads, ops);
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        test.check();
+
+        System.out.println(threads + " threads, " + users + " users, " + (long) threads * ops + " ops in " + ms + " ms: "
+                + test.closes.size() + " rooms closed, " + test.rooms.all().size() + " still open, "
+                + test.everyone.size() + " sessions");
+        if (test.problems.isEmpty()) {
+            System.out.println("OK");
+        } else {
+            int shown = Math.min(20, test.problems.size());
+            for (String p : test.problems.subList(0, shown)) System.out.println("FAIL " + p);
+            System.out.println(test.problems.size() + " problem(s)");
+            System.exit(1);
+        }
+    }
+
+// A session on a socket that reads nothing and discards all output.
+
+    private UserSession session(int slot) throws IOException {
+        int port = nextPort.incrementAndGet();
+        Socket s = new Socket() {
+            @Override public InputStream getInputStream() { return new ByteArrayInputStream(new byte[0]); }
+            @Override public OutputStream getOutputStream() { return OutputStream.nullOutputStream(); }
+            @Override public InetAddress getInetAddress() { return InetAddress.getLoopbackAddress(); }
+            @Override public int getPort() { return port; }
+        };
+        UserSession us = new UserSession(new SocketData(s));
+        us.setName("U" + slot);
+        everyone.add(us);
+        return us;
+    }
+
+// This method runs the workload:
+// 1. Starts all threads together behind a latch, so they really overlap.
+// 2. Each thread picks random users and does open (40%), leave (30%), join (29%)
+//    or disconnect (1%). Every open that fails counts as a close of its room.
+// 3. Waits for all threads; an exception in any thread counts as a problem.
+
+    private void run(int threads, int ops) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int k = 0; k < ops; k++) {
+                        int i = rnd.nextInt(slots.length());
+                        UserSession x = slots.get(i);
+                        UserSession y = slots.get(rnd.nextInt(slots.length()));
+                        int op = rnd.nextInt(100);
+                        if (op < 40) {
+                            if (x != y) open(x, y);
+                        } else if (op < 70) {
+                            leave(x);
+                        } else if (op < 99) {
+                            join(x, y);
+                        } else {
+                            disconnect(i, x);
+                        }
+                    }
+                } catch (Throwable e) {
+                    problems.add(Thread.currentThread().getName() + ": " + e);
+                }
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private void open(UserSession a, UserSession b) {
+        RoomLifecycle.Opened o = rooms.open(a, b);
+        if (o.room() != null) newestRoom.accumulateAndGet(number(o.room().id()), Math::max);
+        if (o.aborted() != null) closed(o.aborted());
+    }
+
+    private void leave(UserSession us) {
+        ChatRoom r = rooms.get(us.activeRoomId());
+        if (r != null) closed(rooms.leave(us, r));
+    }
+
+// Same steps as ChatServer.cleanup, after the session was removed from sessionsByName.
+
+    private void disconnect(int slot, UserSession us) throws IOException {
+        if (!slots.compareAndSet(slot, us, session(slot))) return;
+        us.retire();
+        String rid = us.activeRoomId();
+        ChatRoom r = rooms.get(rid);
+        if (r != null) closed(rooms.leave(us, r));
+        us.releaseRoom(rid);
+        us.setBusy(false);
+    }
+
+// Joins the room of a random member, or, like an ADMIN typing /join <ID>, a room picked
+// by ID just past the newest one seen, which is often a room that is still being opened.
+
+    private void join(UserSession sup, UserSession member) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        String rid = rnd.nextBoolean() ? member.activeRoomId() : "room " + (newestRoom.get() + rnd.nextInt(1, 4));
+        ChatRoom r = rooms.get(rid);
+        if (r != null) rooms.join(sup, r);
+    }
+
+    private static int number(String roomId) {
+        return Integer.parseInt(roomId.substring(roomId.indexOf(' ') + 1));
+    }
+
+// Counts every close result per room.
+
+    private void closed(RoomLifecycle.Closed c) {
+        if (c == null) return;
+        closes.computeIfAbsent(c.roomId(), k -> new AtomicInteger()).incrementAndGet();
+    }
+
+// This method checks the invariants once all threads are done:
+// 1. No double close: every room was closed by exactly one caller.
+// 2. busy == (roomId != null): a session is BUSY exactly when it is in a room.
+// 3. No orphaned session: a session's room is still in the map, OPEN, and has the session as a member.
+// 4. No stale room: every room in the map is OPEN, has 2 participants,
+//    and each participant and supervisor points back at it.
+// 5. A disconnected session is in no room.
+
+    private void check() {
+        for (var e : closes.entrySet()) {
+            if (e.getValue().get() != 1) problems.add("room " + e.getKey() + " closed " + e.getValue().get() + " times");
+        }
+
+        List<UserSession> live = new ArrayList<>();
+        for (int i = 0; i < slots.length(); i++) live.add(slots.get(i));
+
+        for (UserSession us : everyone) {
+            String rid = us.activeRoomId();
+            String who = us.name() + "@" + us.addr();
+            if (us.isBusy() != (rid != null)) problems.add(who + " busy=" + us.isBusy() + " but room=" + rid);
+            if (rid == null) continue;
+
+            if (!live.contains(us)) problems.add("disconnected " + who + " still in " + rid);
+            ChatRoom r = rooms.get(rid);
+            if (r == null) {
+                problems.add(who + " points at removed room " + rid);
+            } else if (r.state() != ChatRoom.State.OPEN) {
+                problems.add(who + " points at " + r.state() + " room " + rid);
+            } else if (!r.participantsList().contains(us) && !r.supervisorsList().contains(us)) {
+                problems.add(who + " points at " + rid + " but is not a member");
+            }
+        }
+
+        for (ChatRoom r : rooms.all()) {
+            if (r.state() != ChatRoom.State.OPEN) problems.add("room " + r.id() + " in map is " + r.state());
+            if (r.participantsCount() < 2) problems.add("room " + r.id() + " has " + r.participantsCount() + " participant(s)");
+            for (UserSession p : r.participantsList()) {
+                if (!r.id().equals(p.activeRoomId())) problems.add("room " + r.id() + " lists " + p.name() + " who is in " + p.activeRoomId());
+            }
+            for (UserSession s : r.supervisorsList()) {
+                if (!r.id().equals(s.activeRoomId())) problems.add("room " + r.id() + " lists supervisor " + s.name() + " who is in " + s.activeRoomId());
+            }
+        }
+    }
+}
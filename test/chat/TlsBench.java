@@ -0,0 +1,192 @@
+package chat;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+// The TlsBench class measures what TLS costs on loopback, using TlsSupport as the server does.
+// - Handshakes: N full handshakes (a new client SSLContext each time, so nothing can be resumed)
+//   and N resumed ones (the shared client context of TlsSupport.clientSocket). Each connection
+//   does one echo round-trip before it is closed: with TLS 1.3 the server sends its session
+//   ticket after the handshake, and the client only takes it in when it reads.
+// - Every resumed connection is checked, and the run fails if one was not really resumed.
+// - Messages: M println round-trips on one connection, first plain and then over TLS;
+//   the server side echoes each line through SocketData like ChatServer does.
+// - Each part is run once as a warm-up before it is timed.
+// Handshakes are timed on the client, from connect to the end of the first round-trip.
+// Usage: java chat.TlsBench [keystore.p12 | -] [handshakes] [roundTrips]
+// Without a keystore (or with "-"), a self-signed one is made with keytool (see TlsSupport) in a temp folder.
+// The keystore password is -Dchat.tls.password (default "changeit").
+
+public class TlsBench {
+
+    private static final String LINE = "hello from the TLS benchmark";
+
+    public static void main(String[] args) throws Exception {
+        Path keystore = args.length > 0 && !args[0].equals("-") ? Paths.get(args[0]) : selfSigned();
+        int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+
+        System.setProperty("chat.tls.keystore", keystore.toString());
+        System.setProperty("chat.tls.truststore", keystore.toString());
+        System.setProperty("chat.tls", "true");
+
+        try (ServerSocket tls = TlsSupport.serverSocket(0);
+             ServerSocket plain = new ServerSocket(0)) {
+            echo(tls);
+            echo(plain);
+            TrustManager[] tms = trustManagers(keystore);
+
+            fullHandshakes(tms, tls.getLocalPort(), Math.max(1, handshakes / 10));
+            long full = fullHandshakes(tms, tls.getLocalPort(), handshakes);
+            long created = firstSession(tls.getLocalPort());
+            resumedHandshakes(tls.getLocalPort(), Math.max(1, handshakes / 10), created);
+            long resumed = resumedHandshakes(tls.getLocalPort(), handshakes, created);
+            report("full handshake", full, handshakes);
+            report("resumed handshake", resumed, handshakes);
+
+            try (Socket s = new Socket("localhost", plain.getLocalPort())) {
+                s.setTcpNoDelay(true);
+                roundTrips(s, Math.max(1, roundTrips / 10));
+                long t = roundTrips(s, roundTrips);
+                report("plain round-trip", t, roundTrips);
+                try (Socket ts = TlsSupport.clientSocket("localhost", tls.getLocalPort())) {
+                    roundTrips(ts, Math.max(1, roundTrips / 10));
+                    long tt = roundTrips(ts, roundTrips);
+                    report("TLS round-trip", tt, roundTrips);
+                    System.out.printf("TLS overhead per message: %.1f us (%s)%n",
+                            (tt - t) / 1000.0 / roundTrips, ((SSLSocket) ts).getSession().getCipherSuite());
+                }
+            }
+        }
+    }
+
+// This method makes a self-signed EC certificate for localhost with the JDK's keytool,
+// the same command as in the TlsSupport comment, in a temp folder that is removed on exit.
+
+    private static Path selfSigned() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("tlsbench");
+        Path file = dir.resolve("chat.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-validity", "1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", file.toString(), "-storepass", System.getProperty("chat.tls.password", "changeit"))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (p.waitFor() != 0) throw new IOException("keytool failed (exit " + p.exitValue() + ")");
+        file.toFile().deleteOnExit();
+        dir.toFile().deleteOnExit();
+        return file;
+    }
+
+// Accepts connections on a daemon thread and echoes every line back, each client on its own thread
+// (with TCP_NODELAY, like ChatServer).
+
+    private static void echo(ServerSocket server) {
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    s.setTcpNoDelay(true);
+                    Thread t = new Thread(() -> {
+                        try (s) {
+                            SocketData sd = new SocketData(s);
+                            String line;
+                            while ((line = sd.getReader().readLine()) != null) sd.getOutputStream().println(line);
+                        } catch (IOException ignored) {}
+                    }, "echo-client");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "echo-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+// Trust managers that accept the benchmark certificate.
+
+    private static TrustManager[] trustManagers(Path keystore) throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            ks.load(in, System.getProperty("chat.tls.password", "changeit").toCharArray());
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        return tmf.getTrustManagers();
+    }
+
+// Each full handshake gets a new client SSLContext, so the client has no session to resume.
+// Otherwise the socket is set up like TlsSupport.clientSocket.
+
+    private static long fullHandshakes(TrustManager[] tms, int port, int n) throws Exception {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, tms, null);
+            try (SSLSocket s = (SSLSocket) ctx.getSocketFactory().createSocket("localhost", port)) {
+                s.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+                s.setTcpNoDelay(true);
+                SSLParameters params = s.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                s.setSSLParameters(params);
+                s.startHandshake();
+                roundTrips(s, 1);
+            }
+        }
+        return System.nanoTime() - t0;
+    }
+
+// Makes the first connection of the shared client context (a full handshake) and returns
+// the creation time of its session. A resumed session keeps the creation time of the session
+// it was resumed from, while a full handshake always makes a new one.
+
+    private static long firstSession(int port) throws IOException {
+        try (SSLSocket s = (SSLSocket) TlsSupport.clientSocket("localhost", port)) {
+            roundTrips(s, 1);
+            return s.getSession().getCreationTime();
+        }
+    }
+
+    private static long resumedHandshakes(int port, int n, long created) throws IOException {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            try (SSLSocket s = (SSLSocket) TlsSupport.clientSocket("localhost", port)) {
+                roundTrips(s, 1);
+                if (s.getSession().getCreationTime() != created) {
+                    throw new IOException("connection " + (i + 1) + " did a full handshake instead of resuming");
+                }
+            }
+        }
+        return System.nanoTime() - t0;
+    }
+
+    private static long roundTrips(Socket s, int n) throws IOException {
+        PrintStream out = new PrintStream(s.getOutputStream(), true, "UTF-8");
+        LineDecoder in = new LineDecoder(s.getInputStream(), LineDecoder.DEFAULT_MAX_LINE);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            out.println(LINE);
+            if (in.readLine() == null) throw new IOException("echo server closed the connection");
+        }
+        return System.nanoTime() - t0;
+    }
+
+    private static void report(String what, long nanos, int n) {
+        double us = nanos / 1000.0 / n;
+        System.out.printf("%-18s %7d in %6d ms  %9.1f us each  %9.0f /s%n",
+                what, n, TimeUnit.NANOSECONDS.toMillis(nanos), us, 1_000_000 / us);
+    }
+}